@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 Syam Pillai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.storedobject.common;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * A pool of buffers that can be borrowed for temporary use (for example, while copying streams) instead of allocating
+ * new ones every time. There are 2 shared pools: one for heap buffers (byte arrays, see {@link #heap()}) and another
+ * for direct {@link ByteBuffer}s (see {@link #direct()}).
+ * <p>Buffers are grouped into size classes (powers of 2 from 512 bytes to 1 MB) and the size of a buffer obtained from
+ * the pool is the requested size rounded up to its size class. Every platform thread keeps a few buffers (up to 1 MB in
+ * total) in a thread-local cache and the rest are shared via lock-free free-lists. The thread-local cache of a thread
+ * that has not used the pool for about 30 seconds is emptied. (Virtual threads do not have a thread-local cache because
+ * they are typically numerous and short-lived.)</p>
+ * <p>A buffer obtained via {@link #acquire(int)} should be returned via {@link #release(Object)} after use and it must
+ * not be used after that. Only the buffers obtained from the pool are taken back. The content of a buffer obtained
+ * from the pool is not cleared. Buffers larger than the largest size class are allocated as and when required and
+ * they are not pooled.</p>
+ * <p>Usage statistics are available via {@link #getStatistics()}. A buffer that is acquired but never released is
+ * counted as "outstanding" and a steadily increasing count of that indicates a leak.</p>
+ *
+ * @param <T> Type of buffer.
+ * @author Syam
+ */
+public final class BufferPool<T> {
+
+    private static final int MIN_SHIFT = 9, MAX_SHIFT = 20, CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int LOCAL_SIZE = 4; // Buffers per size class in the thread-local cache
+    private static final long LOCAL_BYTES = 1L << 20; // Bytes in the thread-local cache
+    private static final long LOCAL_IDLE_TIME = 30_000; // Milliseconds after which an idle local cache is emptied
+    private static final long SHARED_BYTES = 4L << 20; // Bytes per size class in the shared free-list
+    private static final BufferPool<byte[]> HEAP = new BufferPool<>(byte[]::new, b -> b.length, null);
+    private static final BufferPool<ByteBuffer> DIRECT = new BufferPool<>(ByteBuffer::allocateDirect,
+            ByteBuffer::capacity, ByteBuffer::clear);
+    private final IntFunction<T> allocator;
+    private final ToIntFunction<T> sizer;
+    private final Consumer<T> resetter;
+    private final ConcurrentLinkedQueue<Object>[] shared;
+    private final AtomicInteger[] sharedCount = new AtomicInteger[CLASSES];
+    private final ThreadLocal<Cache> local = ThreadLocal.withInitial(this::newCache);
+    private final Set<WeakReference<Cache>> caches = ConcurrentHashMap.newKeySet();
+    private final AtomicLong expired = new AtomicLong(System.currentTimeMillis());
+    private final Set<Issued> issued = ConcurrentHashMap.newKeySet(); // Buffers acquired and not yet released
+    private final ReferenceQueue<Object> leaked = new ReferenceQueue<>();
+    private final LongAdder acquired = new LongAdder(), released = new LongAdder(), allocated = new LongAdder(),
+            localHits = new LongAdder(), sharedHits = new LongAdder(), discarded = new LongAdder(),
+            unpooled = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool(IntFunction<T> allocator, ToIntFunction<T> sizer, Consumer<T> resetter) {
+        this.allocator = allocator;
+        this.sizer = sizer;
+        this.resetter = resetter;
+        shared = new ConcurrentLinkedQueue[CLASSES];
+        for(int i = 0; i < CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Get the pool of heap buffers.
+     *
+     * @return Pool of byte arrays.
+     */
+    public static BufferPool<byte[]> heap() {
+        return HEAP;
+    }
+
+    /**
+     * Get the pool of direct buffers. A buffer obtained from this pool is cleared (position is zero and limit is set to
+     * its capacity).
+     *
+     * @return Pool of direct byte buffers.
+     */
+    public static BufferPool<ByteBuffer> direct() {
+        return DIRECT;
+    }
+
+    /**
+     * Acquire a buffer from the pool. If no buffer is available in the pool, a new one is allocated.
+     *
+     * @param size Minimum size required.
+     * @return A buffer of at least the size required.
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire(int size) {
+        if(size < 0) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        acquired.increment();
+        expire();
+        int c = sizeClass(size);
+        T buffer;
+        if(c < 0) {
+            unpooled.increment();
+            buffer = allocator.apply(size);
+        } else {
+            Cache cache = cache();
+            Object b = cache == null ? null : cache.take(c);
+            if(b != null) {
+                localHits.increment();
+            } else if((b = shared[c].poll()) != null) {
+                sharedCount[c].decrementAndGet();
+                sharedHits.increment();
+            } else {
+                allocated.increment();
+                b = allocator.apply(1 << (c + MIN_SHIFT));
+            }
+            buffer = (T) b;
+        }
+        Reference<?> r;
+        while((r = leaked.poll()) != null) { // Never released, already garbage collected
+            issued.remove((Issued) r);
+        }
+        issued.add(new Issued(buffer, leaked));
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. The buffer must not be used after this.
+     *
+     * @param buffer Buffer to return (<code>null</code>, a buffer not obtained from this pool or a buffer that is
+     *               already returned is ignored).
+     */
+    public void release(T buffer) {
+        if(buffer == null || !issued.remove(new Issued(buffer, null))) {
+            return;
+        }
+        released.increment();
+        int size = sizer.applyAsInt(buffer), c = Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+        if(Integer.bitCount(size) != 1 || c < 0 || c >= CLASSES) { // Too large to be pooled
+            return;
+        }
+        if(resetter != null) {
+            resetter.accept(buffer);
+        }
+        Cache cache = cache();
+        if(cache != null && cache.put(c, buffer)) {
+            return;
+        }
+        if(sharedCount[c].incrementAndGet() <= Math.max(LOCAL_SIZE, SHARED_BYTES >> (c + MIN_SHIFT))) {
+            shared[c].offer(buffer);
+            return;
+        }
+        sharedCount[c].decrementAndGet();
+        discarded.increment();
+    }
+
+    /**
+     * Get the usage statistics of this pool.
+     *
+     * @return Statistics.
+     */
+    public PoolStatistics getStatistics() {
+        PoolStatistics s = new PoolStatistics();
+        s.acquired = acquired.sum();
+        s.released = released.sum();
+        s.allocated = allocated.sum();
+        s.localHits = localHits.sum();
+        s.sharedHits = sharedHits.sum();
+        s.discarded = discarded.sum();
+        s.unpooled = unpooled.sum();
+        long pooled = 0;
+        for(int i = 0; i < CLASSES; i++) {
+            pooled += (long) sharedCount[i].get() << (i + MIN_SHIFT);
+        }
+        s.sharedBytes = pooled;
+        pooled = 0;
+        for(WeakReference<Cache> r: caches) {
+            Cache cache = r.get();
+            if(cache != null) {
+                pooled += cache.bytes;
+            }
+        }
+        s.localBytes = pooled;
+        return s;
+    }
+
+    private static int sizeClass(int size) {
+        if(size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        int c = 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+        return c < CLASSES ? c : -1;
+    }
+
+    private Cache cache() {
+        return Thread.currentThread().isVirtual() ? null : local.get();
+    }
+
+    private Cache newCache() {
+        Cache cache = new Cache();
+        caches.add(new WeakReference<>(cache));
+        return cache;
+    }
+
+    /**
+     * Empty the thread-local caches that are idle for a while (checked only once in a while).
+     */
+    private void expire() {
+        long now = System.currentTimeMillis(), last = expired.get();
+        if(now - last < LOCAL_IDLE_TIME || !expired.compareAndSet(last, now)) {
+            return;
+        }
+        caches.removeIf(r -> {
+            Cache cache = r.get();
+            if(cache == null) { // Thread is gone
+                return true;
+            }
+            if(now - cache.used >= LOCAL_IDLE_TIME) {
+                discarded.add(cache.clear());
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Thread-local cache. It is accessed by its own thread except when it is emptied because it is idle.
+     */
+    private static class Cache {
+
+        private final Object[][] buffers = new Object[CLASSES][LOCAL_SIZE];
+        private final int[] counts = new int[CLASSES];
+        private volatile long bytes, used = System.currentTimeMillis();
+
+        private synchronized Object take(int c) {
+            used = System.currentTimeMillis();
+            if(counts[c] == 0) {
+                return null;
+            }
+            int i = --counts[c];
+            Object buffer = buffers[c][i];
+            buffers[c][i] = null;
+            bytes -= 1L << (c + MIN_SHIFT);
+            return buffer;
+        }
+
+        private synchronized boolean put(int c, Object buffer) {
+            used = System.currentTimeMillis();
+            long size = 1L << (c + MIN_SHIFT);
+            if(counts[c] == LOCAL_SIZE || bytes + size > LOCAL_BYTES) {
+                return false;
+            }
+            buffers[c][counts[c]++] = buffer;
+            bytes += size;
+            return true;
+        }
+
+        private synchronized int clear() {
+            int n = 0;
+            for(int c = 0; c < CLASSES; c++) {
+                while(counts[c] > 0) {
+                    buffers[c][--counts[c]] = null;
+                    ++n;
+                }
+            }
+            bytes = 0;
+            return n;
+        }
+    }
+
+    /**
+     * Weak reference to a buffer that is acquired, compared by the identity of the buffer.
+     */
+    private static class Issued extends WeakReference<Object> {
+
+        private final int hash;
+
+        private Issued(Object buffer, ReferenceQueue<Object> queue) {
+            super(buffer, queue);
+            hash = System.identityHashCode(buffer);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            Object buffer = get();
+            return buffer != null && o instanceof Issued i && i.get() == buffer;
+        }
+    }
+}
@@ -17,43 +17,157 @@
 package com.storedobject.common;
 
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * A file-mapped data buffer with index-based access to data for writing and then, for reading.
  * Data is just byte arrays of arbitrary length.
+ * <p>By default, the total size of the data is limited to 2 GB. A "large" buffer (see {@link #FileBuffer(boolean)})
+ * keeps 64-bit offsets in its index and maps its data in segments of 1 GB, so that its data can grow well beyond
+ * 2 GB. However, a single data chunk in a "large" buffer can not be larger than 1 GB.</p>
+ * <p>A "compressed" buffer (see {@link #FileBuffer(boolean, boolean)}) writes its data in blocks of 64 KB (or larger,
+ * if a single data chunk is larger than that) compressed using {@link Deflater}. Reading a data chunk decompresses only
+ * the block containing it and a small number of recently used blocks are cached.</p>
+ * <p>A buffer is normally backed by temporary files that are deleted when the buffer is closed. However, it can be
+ * saved to a file (see {@link #save(Path)}) and opened later (see {@link #open(Path)}), even from another JVM.</p>
  *
  * @author Syam
  */
 @SuppressWarnings("ResultOfMethodCallIgnored")
 public class FileBuffer implements ResourceOwner {
 
+    private static final int MIN_SORT_MEMORY = 1 << 20;
+    private static final int RECORD_OVERHEAD = 32; // Approximate heap overhead of a byte[] held in a list
+    private static final int POSITION_OVERHEAD = 8; // Heap used per data chunk while sorting the index
+    private static final int MERGE_FACTOR = 64;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    private static final int PARALLEL_SORT_THRESHOLD = 8192;
+    private static final int SEGMENT_SHIFT = 30, SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int APPEND_CHUNK_SIZE = 256 * 1024;
+    private static final int MAGIC = 0x534F4642; // "SOFB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int CHECKSUM_BLOCK_SIZE = 1 << 20;
+    private static final int FLAG_LARGE = 1, FLAG_CHECKSUM = 2;
+    private static final int COMPRESSION_BLOCK_SIZE = 64 * 1024;
+    private static final int CACHED_BLOCKS = 32;
+    private static final byte[] PADDING = new byte[64 * 1024]; // Zeros for padding up to the segment boundary
+    private static final int HASH_ENTRY_OVERHEAD = 96; // Approximate heap overhead of a key held in a hash set
+    private static final int PARTITION_BITS = 6, MAX_PARTITION_LEVEL = 5;
     private final AutoCloseableList closeables = new AutoCloseableList();
+    private final boolean large, compressed, longOffsets;
+    private final int dataShift, indexShift, entryShift;
+    private final long dataMask;
+    private final int indexMask;
     private File dataFile, indexFile;
-    private ByteBuffer dataBuffer;
-    private IntBuffer indexBuffer;
+    private ByteBuffer[] dataBuffers, indexBuffers;
     private BufferedOutputStream dataOut;
     private DataOutputStream indexOut;
-    private int size = 0, dataSize = 0;
+    private FileChannel dataChannel;
+    private AtomicLong claimed;
+    private List<Appender> appenders;
+    private int size = 0;
+    private long dataSize = 0;
+    private Blocks blocks;
+    private ByteBuffer block;
+    private Deflater deflater;
     private byte created = -1;
     private boolean writable = false;
     private FileBuffer parent = null, child = null;
+    private SortStatistics sortStatistics;
 
     /**
-     * Constructor.
+     * Constructor. The total size of the data is limited to 2 GB.
      */
     public FileBuffer() {
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param large Whether to create a "large" buffer or not. Data in a "large" buffer can grow beyond 2 GB.
+     */
+    public FileBuffer(boolean large) {
+        this(large, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param large Whether to create a "large" buffer or not. Data in a "large" buffer can grow beyond 2 GB.
+     * @param compressed Whether to compress the data or not. Data in a "compressed" buffer can always grow beyond
+     *                   2 GB.
+     */
+    public FileBuffer(boolean large, boolean compressed) {
+        this.large = large;
+        this.compressed = compressed;
+        longOffsets = large || compressed;
+        // In normal mode, the whole data is mapped as a single segment. In compressed mode, the offsets contain the
+        // block number in the higher bits.
+        dataShift = large && !compressed ? SEGMENT_SHIFT : Integer.SIZE - 1;
+        dataMask = (1L << dataShift) - 1;
+        entryShift = longOffsets ? 3 : 2;
+        indexShift = SEGMENT_SHIFT - entryShift;
+        indexMask = (1 << indexShift) - 1;
         ResourceDisposal.register(this);
     }
 
+    /**
+     * Check whether this is a "large" buffer or not.
+     *
+     * @return True if this is a "large" buffer.
+     */
+    public boolean isLarge() {
+        return large;
+    }
+
+    /**
+     * Check whether this is a "compressed" buffer or not.
+     *
+     * @return True if this is a "compressed" buffer.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     /**
      * Get the "resource" owned by this buffer.
      *
@@ -72,14 +186,19 @@ public class FileBuffer implements ResourceOwner {
             return;
         }
         try {
-            dataFile = File.createTempFile("SOBuffer", ".data");
-            dataFile.deleteOnExit();
+            dataFile = createTempFile(".data");
             dataOut = IO.getOutput(dataFile);
             closeables.add(dataOut);
-            indexFile = File.createTempFile("SOBuffer", ".index");
-            indexFile.deleteOnExit();
+            indexFile = createTempFile(".index");
             indexOut = IO.getDataOutput(indexFile);
             closeables.add(indexOut);
+            if(compressed) {
+                blocks = new Blocks();
+                closeables.add(blocks.share());
+                block = ByteBuffer.allocate(COMPRESSION_BLOCK_SIZE);
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                closeables.add(deflater::end);
+            }
             created = 0;
         } catch(Exception e) {
             close();
@@ -94,27 +213,216 @@ public class FileBuffer implements ResourceOwner {
         if(created != 0) {
             return;
         }
-        RandomAccessFile file = null;
         try {
-            dataOut.close();
-            dataOut = null;
+            if(appenders == null) {
+                if(compressed) {
+                    compress();
+                    block = null;
+                    deflater.end();
+                    deflater = null;
+                }
+                dataOut.close();
+                dataOut = null;
+            } else {
+                assemble();
+            }
             indexOut.close();
             indexOut = null;
-            file = new RandomAccessFile(dataFile, "r");
-            dataBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataFile.length());
-            file.close();
-            file = new RandomAccessFile(indexFile, "r");
-            indexBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, indexFile.length()).asIntBuffer();
-            file.close();
+            if(compressed) {
+                blocks.open(dataFile);
+            } else {
+                dataBuffers = map(dataFile, FileChannel.MapMode.READ_ONLY, 1L << dataShift);
+            }
+            indexBuffers = map(indexFile, FileChannel.MapMode.READ_ONLY, SEGMENT_SIZE);
             created = 1;
         } catch(Exception e) {
-            if(file != null) {
-                try {
-                    file.close();
-                } catch(IOException ignore) {
+            close();
+        }
+    }
+
+    private static ByteBuffer[] map(File file, FileChannel.MapMode mode, long segmentSize) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            FileChannel channel = f.getChannel();
+            return map(channel, mode, 0, channel.size(), segmentSize);
+        }
+    }
+
+    private static ByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long start, long length,
+                                    long segmentSize) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[Math.max(1, (int) ((length + segmentSize - 1) / segmentSize))];
+        for(int i = 0; i < buffers.length; i++) {
+            long position = i * segmentSize;
+            buffers[i] = channel.map(mode, start + position, Math.min(segmentSize, length - position));
+        }
+        return buffers;
+    }
+
+    /**
+     * Create an appender for writing to this buffer concurrently. Once an appender is created, the buffer will be in
+     * "concurrent append" mode and {@link #write(byte[])} can not be used anymore. Each writing thread should use its
+     * own appender, and all the appenders must be closed before invoking {@link #end()}. The data chunks written via
+     * an appender will retain their order in the buffer, and the chunks of the appenders will appear in the
+     * order in which the appenders were created.
+     *
+     * @return A new appender.
+     * @throws IOException If the buffer is not in writing mode or if any I/O error occurs.
+     */
+    public synchronized Appender appender() throws IOException {
+        if(created != 0) {
+            throw new IOException("Buffer is not in writing mode");
+        }
+        if(compressed) {
+            throw new IOException("Concurrent append is not supported for compressed buffers");
+        }
+        if(appenders == null) {
+            dataOut.close(); // Whatever written so far will be retained
+            dataOut = null;
+            dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.WRITE);
+            closeables.add(dataChannel);
+            claimed = new AtomicLong(dataSize);
+            appenders = new ArrayList<>();
+        }
+        Appender appender = new Appender();
+        appenders.add(appender);
+        closeables.add(appender);
+        return appender;
+    }
+
+    private long claim(int length) throws IOException {
+        long start, current;
+        do {
+            current = start = claimed.get();
+            if(large) {
+                if(((start & dataMask) + length) > SEGMENT_SIZE) { // Chunks should not span across segments
+                    start = (start | dataMask) + 1;
                 }
+            } else if(start + length > Integer.MAX_VALUE) {
+                throw new IOException("Buffer full, a large buffer is required");
+            }
+        } while(!claimed.compareAndSet(current, start + length));
+        return start;
+    }
+
+    private synchronized void assemble() throws IOException {
+        long count = size;
+        for(Appender appender: appenders) {
+            appender.close();
+            count += appender.count;
+            if(count > Integer.MAX_VALUE) {
+                throw new IOException("Buffer full");
+            }
+            try (InputStream in = IO.getInput(appender.indexFile)) {
+                in.transferTo(indexOut);
+            }
+            appender.indexFile.delete();
+        }
+        size = (int) count;
+        dataSize = claimed.get();
+        dataChannel.close();
+        dataChannel = null;
+    }
+
+    /**
+     * An appender for writing data chunks to a {@link FileBuffer} concurrently (see {@link FileBuffer#appender()}).
+     * An appender collects the data chunks written to it in a local chunk, claims space for the whole chunk in the
+     * data file (without locking) and writes it there. An appender itself is not thread-safe and should be used by
+     * one thread only.
+     *
+     * @author Syam
+     */
+    public final class Appender implements AutoCloseable {
+
+        private final ByteBuffer chunk = ByteBuffer.wrap(BufferPool.heap().acquire(APPEND_CHUNK_SIZE));
+        private int[] offsets = new int[1024];
+        private int pending = 0;
+        private long count = 0;
+        private final File indexFile;
+        private DataOutputStream indexOut;
+
+        private Appender() throws IOException {
+            indexFile = createTempFile(".index");
+            indexOut = IO.getDataOutput(indexFile);
+        }
+
+        /**
+         * Write a data chunk. The data could be of any length.
+         *
+         * @param data Data to write.
+         * @throws IOException Throws if any error occurs.
+         */
+        public void write(byte[] data) throws IOException {
+            if(indexOut == null) {
+                throw new IOException("Appender closed");
+            }
+            int len = data.length, header = len == 0 || len > 127 ? 5 : 1;
+            if(large && len + header > SEGMENT_SIZE) {
+                throw new IOException("Data too large: " + len);
+            }
+            if(len + header > chunk.remaining()) {
+                flush();
+                if(len + header > chunk.capacity()) { // Too big, write it directly
+                    ByteBuffer b = ByteBuffer.allocate(len + header);
+                    put(b, data, header);
+                    long start = claim(b.limit());
+                    writeFully(b.flip(), start);
+                    writeOffset(indexOut, start);
+                    ++count;
+                    return;
+                }
+            }
+            if(pending == offsets.length) {
+                offsets = Arrays.copyOf(offsets, pending << 1);
+            }
+            offsets[pending++] = chunk.position();
+            put(chunk, data, header);
+        }
+
+        private void put(ByteBuffer b, byte[] data, int header) {
+            if(header == 5) {
+                b.put((byte) 0).putInt(data.length);
+            } else {
+                b.put((byte) data.length);
+            }
+            b.put(data);
+        }
+
+        private void flush() throws IOException {
+            if(pending == 0) {
+                return;
+            }
+            long start = claim(chunk.position());
+            writeFully(chunk.flip(), start);
+            chunk.clear();
+            for(int i = 0; i < pending; i++) {
+                writeOffset(indexOut, start + offsets[i]);
+            }
+            count += pending;
+            pending = 0;
+        }
+
+        private void writeFully(ByteBuffer b, long position) throws IOException {
+            while(b.hasRemaining()) {
+                position += dataChannel.write(b, position);
+            }
+        }
+
+        /**
+         * Close this appender. Pending data chunks, if any, will be written to the buffer.
+         *
+         * @throws IOException If any I/O error occurs.
+         */
+        @Override
+        public void close() throws IOException {
+            if(indexOut == null) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                indexOut.close();
+                indexOut = null;
+                BufferPool.heap().release(chunk.array());
             }
-            close();
         }
     }
 
@@ -125,19 +433,117 @@ public class FileBuffer implements ResourceOwner {
      * @throws Exception Throws if any error occurs.
      */
     public void write(byte[] data) throws Exception {
-        indexOut.writeInt(dataSize);
-        int len = data.length;
-        if(len == 0 || len > 127) {
+        if(appenders != null) {
+            throw new IOException("Buffer is in concurrent append mode");
+        }
+        int len = data.length, header = len == 0 || len > 127 ? 5 : 1;
+        if(size == Integer.MAX_VALUE) {
+            throw new IOException("Buffer full");
+        }
+        if(compressed) {
+            writeBlock(data, header);
+            return;
+        }
+        if(large) {
+            if(len + header > SEGMENT_SIZE) {
+                throw new IOException("Data too large: " + len);
+            }
+            long available = SEGMENT_SIZE - (dataSize & dataMask);
+            if(len + header > available) { // Data chunk should not span across segments
+                for(long n = available; n > 0; n -= PADDING.length) {
+                    dataOut.write(PADDING, 0, (int) Math.min(n, PADDING.length));
+                }
+                dataSize += available;
+            }
+        } else if(dataSize + header + len > Integer.MAX_VALUE) {
+            throw new IOException("Buffer full, a large buffer is required");
+        }
+        writeOffset(indexOut, dataSize);
+        if(header == 5) {
             dataOut.write(0);
             dataOut.write(ByteBuffer.allocate(4).putInt(len).array());
-            dataSize += 5;
         } else {
             dataOut.write(len);
-            dataSize++;
         }
         dataOut.write(data);
         ++size;
-        dataSize += data.length;
+        dataSize += header + len;
+    }
+
+    private void writeBlock(byte[] data, int header) throws IOException {
+        int len = data.length;
+        if(len + header > block.remaining()) {
+            compress();
+            if(len + header > block.capacity()) { // A block of its own
+                block = ByteBuffer.allocate(len + header);
+            }
+        }
+        writeOffset(indexOut, ((long) blocks.count << dataShift) | block.position());
+        if(header == 5) {
+            block.put((byte) 0).putInt(len);
+        } else {
+            block.put((byte) len);
+        }
+        block.put(data);
+        ++size;
+        dataSize += header + len;
+    }
+
+    private void compress() throws IOException {
+        if(block.position() == 0) {
+            return;
+        }
+        deflater.reset();
+        deflater.setInput(block.array(), 0, block.position());
+        deflater.finish();
+        byte[] buffer = BufferPool.heap().acquire(8192);
+        long length = 0;
+        try {
+            while(!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                dataOut.write(buffer, 0, n);
+                length += n;
+            }
+        } finally {
+            BufferPool.heap().release(buffer);
+        }
+        blocks.add(length, block.position());
+        if(block.capacity() == COMPRESSION_BLOCK_SIZE) {
+            block.clear();
+        } else {
+            block = ByteBuffer.allocate(COMPRESSION_BLOCK_SIZE);
+        }
+    }
+
+    private void writeOffset(DataOutputStream out, long offset) throws IOException {
+        if(longOffsets) {
+            out.writeLong(offset);
+        } else {
+            out.writeInt((int) offset);
+        }
+    }
+
+    private long offset(int index) {
+        ByteBuffer b = indexBuffers[index >>> indexShift];
+        int position = (index & indexMask) << entryShift;
+        return longOffsets ? b.getLong(position) : b.getInt(position);
+    }
+
+    private ByteBuffer segment(long offset) {
+        return blocks == null ? dataBuffers[(int) (offset >>> dataShift)] : blocks.get((int) (offset >>> dataShift));
+    }
+
+    private int position(long offset) {
+        return (int) (offset & dataMask);
+    }
+
+    private static int length(ByteBuffer segment, int position) {
+        int len = segment.get(position);
+        return len == 0 ? segment.getInt(position + 1) : len;
+    }
+
+    private static int start(ByteBuffer segment, int position) {
+        return segment.get(position) == 0 ? position + 5 : position + 1;
     }
 
     /**
@@ -145,9 +551,13 @@ public class FileBuffer implements ResourceOwner {
      */
     public void close() {
         closeables.close();
-        size = dataSize = 0;
-        dataBuffer = null;
-        indexBuffer = null;
+        size = 0;
+        dataSize = 0;
+        dataBuffers = null;
+        indexBuffers = null;
+        blocks = null;
+        block = null;
+        deflater = null;
         dataOut = null;
         indexOut = null;
         if(dataFile != null) {
@@ -160,6 +570,11 @@ public class FileBuffer implements ResourceOwner {
             indexFile.delete();
         }
         indexFile = null;
+        if(appenders != null) {
+            appenders.forEach(a -> a.indexFile.delete());
+            appenders = null;
+        }
+        dataChannel = null;
         if(parent != null) {
             parent.child = child;
         }
@@ -179,25 +594,132 @@ public class FileBuffer implements ResourceOwner {
     }
 
     /**
-     * Read data from a specified index.
+     * Read data from a specified index. Reading does not alter the state of the buffer and thus, it is safe to read
+     * from multiple threads concurrently.
      *
      * @param index Index.
      * @return Data read.
      */
     public byte[] read(int index) {
-        index = indexBuffer.get(index);
-        int len = dataBuffer.get(index);
-        ++index;
-        if(len == 0) {
-            dataBuffer.getInt(index);
-            index += 4;
-        }
-        byte[] data = new byte[len];
-        dataBuffer.position(index);
-        dataBuffer.get(data);
+        long offset = offset(index);
+        ByteBuffer segment = segment(offset);
+        int position = position(offset);
+        byte[] data = new byte[length(segment, position)];
+        segment.get(start(segment, position), data);
         return data;
     }
 
+    /**
+     * Get a read-only view of the data at a specified index. No data is copied, the view is backed by the mapped
+     * data of this buffer. Its position will be zero and its limit will be the length of the data chunk.
+     * Like {@link #read(int)}, this is safe to invoke from multiple threads concurrently.
+     *
+     * @param index Index.
+     * @return Read-only view of the data.
+     */
+    public ByteBuffer view(int index) {
+        long offset = offset(index);
+        ByteBuffer segment = segment(offset);
+        int position = position(offset);
+        return segment.slice(start(segment, position), length(segment, position));
+    }
+
+    /**
+     * Create a new cursor for visiting the data chunks of this buffer without any allocation. A cursor may not be
+     * shared between threads, however, any number of cursors may be used concurrently.
+     *
+     * @return A new cursor positioned before the first index.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A flyweight cursor over the data chunks of a {@link FileBuffer}. The same {@link ByteBuffer} instance is
+     * re-positioned each time the cursor is moved, and it remains valid only until the next move.
+     *
+     * @author Syam
+     */
+    public final class Cursor {
+
+        private final ByteBuffer[] segments = dataBuffers == null ? null : new ByteBuffer[dataBuffers.length];
+        private ByteBuffer data;
+        private int index = -1, block = -1;
+
+        private Cursor() {
+        }
+
+        /**
+         * Move to the specified index.
+         *
+         * @param index Index.
+         * @return The buffer containing the data at the index (from its position to limit).
+         */
+        public ByteBuffer moveTo(int index) {
+            this.index = index;
+            long offset = offset(index);
+            int s = (int) (offset >>> dataShift);
+            if(segments == null) { // Compressed
+                if(s == block) {
+                    data.clear();
+                } else {
+                    block = s;
+                    data = segment(offset).duplicate();
+                }
+            } else {
+                data = segments[s];
+                if(data == null) {
+                    data = segments[s] = dataBuffers[s].asReadOnlyBuffer();
+                } else {
+                    data.clear();
+                }
+            }
+            int position = position(offset), start = start(data, position);
+            data.limit(start + FileBuffer.length(data, position)).position(start);
+            return data;
+        }
+
+        /**
+         * Move to the next index.
+         *
+         * @return True if moved, false if there are no more indices.
+         */
+        public boolean next() {
+            if(index + 1 >= size) {
+                return false;
+            }
+            moveTo(index + 1);
+            return true;
+        }
+
+        /**
+         * Get the current index.
+         *
+         * @return Current index (-1 if the cursor is not yet moved).
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Get the buffer containing the data at the current index (from its position to limit).
+         *
+         * @return Buffer.
+         */
+        public ByteBuffer buffer() {
+            return data;
+        }
+
+        /**
+         * Get the length of the data at the current index.
+         *
+         * @return Length in bytes.
+         */
+        public int length() {
+            return data.limit() - data.position();
+        }
+    }
+
     /**
      * Swap positions of 2 data chunks.
      *
@@ -211,124 +733,1567 @@ public class FileBuffer implements ResourceOwner {
         if(!writable) {
             setWritable();
         }
-        int t = indexBuffer.get(firstIndex);
-        indexBuffer.put(firstIndex, indexBuffer.get(secondIndex));
-        indexBuffer.put(secondIndex, t);
+        long t = offset(firstIndex);
+        setOffset(firstIndex, offset(secondIndex));
+        setOffset(secondIndex, t);
     }
 
     /**
-     * Sort the data according the comparator passed.
+     * Sort the data according the comparator passed. The sort is stable (data chunks that are equal as per the
+     * comparator retain their original order).
+     * <p>The index is sorted on the heap and it needs 8 bytes per data chunk. If that is more than a quarter of the
+     * maximum heap, or if this is a "compressed" buffer (where every random access may decompress a block), the
+     * external merge sort (see {@link #sort(Comparator, long)}) is used instead.</p>
      *
      * @param comparator Comparator to compare the data chunks.
      * @return Sorter buffer.
      */
     public FileBuffer sort(Comparator<byte[]> comparator) {
-        FileBuffer f = copy(null);
-        if(f != null) {
-            f.sort(comparator, 0, f.size - 1);
+        return sort(comparator, false);
+    }
+
+    /**
+     * Sort the data according the comparator passed by splitting the work across the processors available. The
+     * data is accessed concurrently in read-only mode, so the comparator must be thread-safe. The sort is stable
+     * (data chunks that are equal as per the comparator retain their original order).
+     * <p>The index is sorted on the heap and it needs 8 bytes per data chunk. If that is more than a quarter of the
+     * maximum heap, or if this is a "compressed" buffer, the external merge sort (see {@link #sort(Comparator, long)})
+     * is used instead (not in parallel).</p>
+     *
+     * @param comparator Comparator to compare the data chunks.
+     * @return Sorter buffer.
+     */
+    public FileBuffer parallelSort(Comparator<byte[]> comparator) {
+        return sort(comparator, true);
+    }
+
+    /**
+     * Sort the data according the comparator passed. The comparator works directly on the read-only views of the
+     * data (see {@link #view(int)}) and no data is copied while comparing. The sort is stable. The index is sorted on
+     * the heap and it needs 8 bytes per data chunk. (For a "compressed" buffer, the external merge sort is used
+     * instead and the comparator gets read-only views of the data copied from the buffer.)
+     *
+     * @param comparator Comparator to compare the data chunks.
+     * @return Sorter buffer.
+     */
+    public FileBuffer sortViews(Comparator<ByteBuffer> comparator) {
+        if(compressed) {
+            return sortExternally(viewComparator(comparator));
         }
-        return f;
+        Cursor c1 = cursor(), c2 = cursor();
+        return sortIndex((i1, i2) -> comparator.compare(c1.moveTo(i1), c2.moveTo(i2)), false);
     }
 
-    private void sort(Comparator<byte[]> comparator, int low, int high) {
-        int i = low, j = high;
-        byte[] pivot = read(low + ((high - low) >> 1));
-        while(i <= j) {
-            while(comparator.compare(read(i), pivot) < 0) {
-                i++;
-            }
-            while(comparator.compare(read(j), pivot) > 0) {
-                j--;
-            }
-            if(i <= j) {
-                swap(i, j);
-                i++;
-                j--;
-            }
+    /**
+     * Sort the data according the comparator passed by splitting the work across the processors available. The
+     * comparator works directly on the read-only views of the data (see {@link #view(int)}) and must be thread-safe.
+     * The sort is stable. The index is sorted on the heap and it needs 8 bytes per data chunk. (For a "compressed"
+     * buffer, the external merge sort is used instead, not in parallel.)
+     *
+     * @param comparator Comparator to compare the data chunks.
+     * @return Sorter buffer.
+     */
+    public FileBuffer parallelSortViews(Comparator<ByteBuffer> comparator) {
+        if(compressed) {
+            return sortExternally(viewComparator(comparator));
         }
-        if(low < j) {
-            sort(comparator, low, j);
+        ThreadLocal<Cursor[]> cursors = ThreadLocal.withInitial(() -> new Cursor[] { cursor(), cursor() });
+        return sortIndex((i1, i2) -> {
+            Cursor[] c = cursors.get();
+            return comparator.compare(c[0].moveTo(i1), c[1].moveTo(i2));
+        }, true);
+    }
+
+    /**
+     * Sort the data using a "prefix key" for each data chunk. The prefix key is extracted only once for each data
+     * chunk and the chunks are ordered by comparing their prefix keys as primitive <code>long</code> values. The
+     * comparator is invoked only when the prefix keys of 2 data chunks are equal. So, the prefix key must be
+     * consistent with the comparator: if the prefix key of a chunk is less than that of another, the comparator should
+     * consider it as less too. See {@link #prefixKey(ByteBuffer)} for a key that is suitable for comparators that
+     * compare the bytes in lexicographic (unsigned) order. The sort is stable. The index is sorted on the heap and it
+     * needs 16 bytes per data chunk (including the prefix key). (For a "compressed" buffer, the external merge sort is
+     * used instead and the prefix key is extracted whenever the data chunks are compared.)
+     *
+     * @param keyExtractor Function to extract the prefix key from the read-only view of the data chunk.
+     * @param comparator Comparator to compare the data chunks with equal prefix keys (if <code>null</code> is passed,
+     *                   the data chunks will be ordered by their prefix keys alone).
+     * @return Sorted buffer.
+     */
+    public FileBuffer sortViews(ToLongFunction<ByteBuffer> keyExtractor, Comparator<ByteBuffer> comparator) {
+        if(compressed) {
+            return sortExternally(keyComparator(keyExtractor, comparator));
         }
-        if(i < high) {
-            sort(comparator, i, high);
+        Cursor c1 = cursor(), c2 = cursor();
+        long[] keys = new long[size];
+        for(int i = 0; i < size; i++) {
+            keys[i] = keyExtractor.applyAsLong(c1.moveTo(i));
         }
+        return sortIndex(keyComparator(keys, comparator == null ? null
+                : (i1, i2) -> comparator.compare(c1.moveTo(i1), c2.moveTo(i2))), false);
     }
 
     /**
-     * Apply a filter to the buffer.
+     * Sort the data using a "prefix key" for each data chunk, splitting the work across the processors available.
+     * See {@link #sortViews(ToLongFunction, Comparator)} for details. Both the key extractor and the comparator must
+     * be thread-safe.
      *
-     * @param filter Filter to be applied.
-     * @return Filtered buffer (if the filter is <code>null</code> or if all the data chunks are satisfying the
-     * filter, then, the same buffer will be returned).
+     * @param keyExtractor Function to extract the prefix key from the read-only view of the data chunk.
+     * @param comparator Comparator to compare the data chunks with equal prefix keys (if <code>null</code> is passed,
+     *                   the data chunks will be ordered by their prefix keys alone).
+     * @return Sorted buffer.
      */
-    public FileBuffer filter(Predicate<byte[]> filter) {
-        if(filter == null) {
-            return this;
+    public FileBuffer parallelSortViews(ToLongFunction<ByteBuffer> keyExtractor, Comparator<ByteBuffer> comparator) {
+        if(compressed) {
+            return sortExternally(keyComparator(keyExtractor, comparator));
         }
-        FileBuffer f = copy(filter);
-        if(f != null) {
-            if(f.size == size) {
-                f.indexFile.delete();
-                return this;
+        ThreadLocal<Cursor[]> cursors = ThreadLocal.withInitial(() -> new Cursor[] { cursor(), cursor() });
+        long[] keys = new long[size];
+        IntStream.range(0, size).parallel()
+                .forEach(i -> keys[i] = keyExtractor.applyAsLong(cursors.get()[0].moveTo(i)));
+        return sortIndex(keyComparator(keys, comparator == null ? null : (i1, i2) -> {
+            Cursor[] c = cursors.get();
+            return comparator.compare(c[0].moveTo(i1), c[1].moveTo(i2));
+        }), true);
+    }
+
+    private static Comparator<byte[]> viewComparator(Comparator<ByteBuffer> comparator) {
+        return (d1, d2) -> comparator.compare(ByteBuffer.wrap(d1).asReadOnlyBuffer(),
+                ByteBuffer.wrap(d2).asReadOnlyBuffer());
+    }
+
+    private static Comparator<byte[]> keyComparator(ToLongFunction<ByteBuffer> keyExtractor,
+                                                    Comparator<ByteBuffer> comparator) {
+        Comparator<byte[]> c = Comparator.comparingLong(d -> keyExtractor.applyAsLong(ByteBuffer.wrap(d)
+                .asReadOnlyBuffer()));
+        return comparator == null ? c : c.thenComparing(viewComparator(comparator));
+    }
+
+    private static IndexComparator keyComparator(long[] keys, IndexComparator comparator) {
+        return (i1, i2) -> {
+            int c = Long.compare(keys[i1], keys[i2]);
+            return c != 0 || comparator == null ? c : comparator.compare(i1, i2);
+        };
+    }
+
+    /**
+     * Compute a prefix key from the first 8 bytes of the data (from its position). Bytes are treated as unsigned and
+     * missing bytes are treated as zeros. The key is normalized so that comparing keys as signed <code>long</code>
+     * values is consistent with a lexicographic comparison of the bytes.
+     *
+     * @param data Data.
+     * @return Prefix key.
+     */
+    public static long prefixKey(ByteBuffer data) {
+        int position = data.position(), n = Math.min(8, data.limit() - position);
+        long key = 0;
+        for(int i = 0; i < 8; i++) {
+            key <<= 8;
+            if(i < n) {
+                key |= data.get(position + i) & 0xFF;
             }
-            chain(f);
         }
-        return f;
+        return key ^ Long.MIN_VALUE;
     }
 
-    private void chain(FileBuffer f) {
-        if(child == null) {
-            child = f;
-            f.parent = this;
-            return;
+    private FileBuffer sort(Comparator<byte[]> comparator, boolean parallel) {
+        // Compressed: random access may decompress a block for every comparison, so the data is read sequentially
+        if(compressed || (long) size * POSITION_OVERHEAD > Runtime.getRuntime().maxMemory() / 4) {
+            return sortExternally(comparator);
         }
-        child.chain(f);
+        return sortIndex((i1, i2) -> comparator.compare(read(i1), read(i2)), parallel);
     }
 
-    private FileBuffer copy(Predicate<byte[]> filter) {
-        FileBuffer f = new FileBuffer();
-        f.dataBuffer = dataBuffer.asReadOnlyBuffer();
-        f.dataSize = dataSize;
+    private FileBuffer sortExternally(Comparator<byte[]> comparator) {
         try {
-            f.indexFile = File.createTempFile("SOBuffer", ".index");
-            f.indexFile.deleteOnExit();
-            f.indexOut = IO.getDataOutput(f.indexFile);
-            for(int i = 0; i < size; i++) {
-                if(filter != null && !filter.test(read(i))) {
-                    continue;
-                }
-                f.size++;
-                f.indexOut.writeInt(indexBuffer.get(i));
-            }
-            f.indexOut.close();
-            try (RandomAccessFile file = new RandomAccessFile(f.indexFile, "r")) {
-                f.indexBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.indexFile.length()).asIntBuffer();
-            }
-            f.created = 1;
+            return sort(comparator, Runtime.getRuntime().maxMemory() / 4);
         } catch(Exception e) {
-            f.created = -1;
-        } finally {
-            IO.close(f.indexOut);
-            if(f.created != 1) {
-                f.indexFile.delete();
-                f = null;
-            }
+            throw new SORuntimeException("Unable to sort", e);
         }
-        return f;
     }
 
-    private synchronized void setWritable() {
-        if(writable) {
+    private FileBuffer sortIndex(IndexComparator comparator, boolean parallel) {
+        int[] positions = sortedPositions(comparator, parallel);
+        return derive(i -> positions[i], size);
+    }
+
+    private int[] sortedPositions(IndexComparator comparator, boolean parallel) {
+        int[] positions = new int[size], aux = new int[size];
+        for(int i = 0; i < size; i++) {
+            positions[i] = aux[i] = i;
+        }
+        if(parallel && size > PARALLEL_SORT_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new ParallelSort(aux, positions, 0, size, comparator));
+        } else {
+            mergeSort(aux, positions, 0, size, comparator);
+        }
+        return positions;
+    }
+
+    /**
+     * Compares the data chunks at 2 indices.
+     */
+    @FunctionalInterface
+    private interface IndexComparator {
+        int compare(int index1, int index2);
+    }
+
+    /**
+     * Sort the range [low, high) of "to" using "from" as the scratch area. Both should contain the same elements
+     * on entry.
+     */
+    private static void mergeSort(int[] from, int[] to, int low, int high, IndexComparator comparator) {
+        if(high - low <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(to, low, high, comparator);
             return;
         }
-        RandomAccessFile file = null;
-        try {
-            file = new RandomAccessFile(indexFile, "rw");
-            indexBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFile.length()).asIntBuffer();
-            file.close();
+        int mid = (low + high) >>> 1;
+        mergeSort(to, from, low, mid, comparator);
+        mergeSort(to, from, mid, high, comparator);
+        merge(from, to, low, mid, high, comparator);
+    }
+
+    private static void insertionSort(int[] a, int low, int high, IndexComparator comparator) {
+        for(int i = low + 1; i < high; i++) {
+            int v = a[i], j = i - 1;
+            while(j >= low && comparator.compare(a[j], v) > 0) {
+                a[j + 1] = a[j];
+                --j;
+            }
+            a[j + 1] = v;
+        }
+    }
+
+    private static void merge(int[] from, int[] to, int low, int mid, int high, IndexComparator comparator) {
+        if(comparator.compare(from[mid - 1], from[mid]) <= 0) { // Already in order
+            System.arraycopy(from, low, to, low, high - low);
+            return;
+        }
+        int i = low, j = mid;
+        for(int k = low; k < high; k++) {
+            if(j >= high || (i < mid && comparator.compare(from[i], from[j]) <= 0)) {
+                to[k] = from[i++];
+            } else {
+                to[k] = from[j++];
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ParallelSort extends RecursiveAction {
+
+        private final int[] from, to;
+        private final int low, high;
+        private final IndexComparator comparator;
+
+        private ParallelSort(int[] from, int[] to, int low, int high, IndexComparator comparator) {
+            this.from = from;
+            this.to = to;
+            this.low = low;
+            this.high = high;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected void compute() {
+            if(high - low <= PARALLEL_SORT_THRESHOLD) {
+                mergeSort(from, to, low, high, comparator);
+                return;
+            }
+            int mid = (low + high) >>> 1;
+            invokeAll(new ParallelSort(to, from, low, mid, comparator),
+                    new ParallelSort(to, from, mid, high, comparator));
+            merge(from, to, low, mid, high, comparator);
+        }
+    }
+
+    /**
+     * Sort the data according the comparator passed using an external merge sort. Data chunks are collected into
+     * sorted runs in memory (within the memory limit specified) and each run is spilled to a temporary file. The runs
+     * are then merged into a new buffer. Unlike {@link #sort(Comparator)}, the data chunks are physically re-arranged
+     * in the resulting buffer, and so, sequential reads from it will be reading its data file sequentially.
+     * <p>The sort is stable: data chunks that are equal as per the comparator retain their original order.</p>
+     * <p>Statistics of the sort can be obtained from the resulting buffer via {@link #getSortStatistics()}.</p>
+     *
+     * @param comparator Comparator to compare the data chunks.
+     * @param memoryLimit Approximate heap memory (in bytes) that may be used for holding data chunks while creating
+     *                    the sorted runs. (Minimum 1 MB will be used.)
+     * @return Sorted buffer.
+     * @throws Exception Throws if any error occurs.
+     */
+    public FileBuffer sort(Comparator<byte[]> comparator, long memoryLimit) throws Exception {
+        if(created != 1) {
+            throw new IOException("Buffer is not ready for reading");
+        }
+        memoryLimit = Math.max(memoryLimit, MIN_SORT_MEMORY);
+        SortStatistics statistics = new SortStatistics();
+        long time = System.currentTimeMillis();
+        List<File> runs = new ArrayList<>();
+        List<byte[]> chunks = new ArrayList<>();
+        FileBuffer sorted = new FileBuffer(large, compressed);
+        try {
+            long used = 0;
+            byte[] data;
+            for(int i = 0; i < size; i++) {
+                data = read(i);
+                chunks.add(data);
+                used += data.length + RECORD_OVERHEAD;
+                if(used >= memoryLimit) {
+                    runs.add(spill(chunks, comparator, statistics));
+                    used = 0;
+                }
+            }
+            sorted.begin();
+            if(sorted.created != 0) {
+                throw new IOException("Unable to create buffer");
+            }
+            if(runs.isEmpty()) { // Everything fitted in memory
+                chunks.sort(comparator);
+                statistics.runs = 1;
+                statistics.sortTime = System.currentTimeMillis() - time;
+                for(byte[] chunk: chunks) {
+                    sorted.write(chunk);
+                }
+            } else {
+                if(!chunks.isEmpty()) {
+                    runs.add(spill(chunks, comparator, statistics));
+                }
+                chunks = null;
+                statistics.runs = runs.size();
+                statistics.sortTime = System.currentTimeMillis() - time;
+                time = System.currentTimeMillis();
+                while(runs.size() > MERGE_FACTOR) {
+                    runs = mergePass(runs, comparator, statistics);
+                }
+                ++statistics.mergePasses;
+                merge(runs, comparator, sorted::write);
+                statistics.mergeTime = System.currentTimeMillis() - time;
+            }
+            sorted.end();
+            if(sorted.created != 1) {
+                throw new IOException("Unable to create buffer");
+            }
+        } catch(Exception e) {
+            sorted.close();
+            throw e;
+        } finally {
+            runs.forEach(File::delete);
+        }
+        sorted.sortStatistics = statistics;
+        return sorted;
+    }
+
+    /**
+     * Get the statistics of the external sort if this buffer was created by {@link #sort(Comparator, long)}.
+     *
+     * @return Statistics or <code>null</code> if this buffer was not created by an external sort.
+     */
+    public SortStatistics getSortStatistics() {
+        return sortStatistics;
+    }
+
+    /**
+     * Save this buffer to a file with checksums. See {@link #save(Path, boolean)}.
+     *
+     * @param path Path of the file.
+     * @throws IOException If the buffer is not in read-only mode or if any I/O error occurs.
+     */
+    public void save(Path path) throws IOException {
+        save(path, true);
+    }
+
+    /**
+     * Save this buffer to a file so that it can be opened later via {@link #open(Path)}, even from another JVM. The
+     * file contains a versioned header, the index (in the current order of this buffer) and the data. Optionally,
+     * CRC32C checksums of each 1 MB block of the index and data are also saved so that the content can be verified
+     * while opening. This buffer remains usable after saving.
+     *
+     * @param path Path of the file (it will be overwritten if it already exists).
+     * @param checksum Whether to save checksums or not.
+     * @throws IOException If the buffer is not in read-only mode or if any I/O error occurs.
+     */
+    public void save(Path path, boolean checksum) throws IOException {
+        if(created != 1) {
+            throw new IOException("Buffer is not ready for reading");
+        }
+        if(compressed) {
+            throw new IOException("Compressed buffers can not be saved");
+        }
+        long indexLength = (long) size << entryShift;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Checksums checksums = checksum ? new Checksums() : null;
+            channel.position(HEADER_SIZE);
+            write(channel, indexBuffers, indexLength, checksums);
+            write(channel, dataBuffers, dataSize, checksums);
+            long checksumOffset = 0;
+            if(checksums != null) {
+                checksumOffset = channel.position();
+                ByteBuffer table = checksums.table();
+                while(table.hasRemaining()) {
+                    channel.write(table);
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt((large ? FLAG_LARGE : 0) | (checksum ? FLAG_CHECKSUM : 0))
+                    .putInt(size).putLong(indexLength).putLong(dataSize).putLong(checksumOffset)
+                    .putInt(CHECKSUM_BLOCK_SIZE);
+            CRC32C crc = new CRC32C();
+            crc.update(header.array(), 0, HEADER_SIZE - 4);
+            header.putInt(HEADER_SIZE - 4, (int) crc.getValue());
+            header.clear();
+            while(header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer[] segments, long length, Checksums checksums)
+            throws IOException {
+        for(ByteBuffer segment: segments) {
+            if(length <= 0) {
+                break;
+            }
+            ByteBuffer b = segment.duplicate().clear();
+            b.limit((int) Math.min(b.capacity(), length));
+            length -= b.limit();
+            if(checksums != null) {
+                checksums.update(b.duplicate());
+            }
+            while(b.hasRemaining()) {
+                channel.write(b);
+            }
+        }
+    }
+
+    /**
+     * Open a buffer that was saved earlier via {@link #save(Path)}. The file is mapped straight away in read-only
+     * mode without verifying the checksums.
+     *
+     * @param path Path of the file.
+     * @return Buffer (already in read-only mode).
+     * @throws IOException If the file is not a valid buffer file or if any I/O error occurs.
+     */
+    public static FileBuffer open(Path path) throws IOException {
+        return open(path, false);
+    }
+
+    /**
+     * Open a buffer that was saved earlier via {@link #save(Path)}. The file will not be modified or deleted when the
+     * buffer is closed.
+     *
+     * @param path Path of the file.
+     * @param verify Whether to verify the checksums or not (ignored if the file was saved without checksums).
+     * @return Buffer (already in read-only mode).
+     * @throws IOException If the file is not a valid buffer file, if the verification fails or if any I/O error
+     * occurs.
+     */
+    public static FileBuffer open(Path path, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while(header.hasRemaining()) {
+                if(channel.read(header) < 0) {
+                    throw new IOException("Not a buffer file: " + path);
+                }
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(header.array(), 0, HEADER_SIZE - 4);
+            header.flip();
+            if(header.getInt() != MAGIC || header.getInt(HEADER_SIZE - 4) != (int) crc.getValue()) {
+                throw new IOException("Not a buffer file: " + path);
+            }
+            int version = header.getInt();
+            if(version != VERSION) {
+                throw new IOException("Unsupported buffer file version " + version + ": " + path);
+            }
+            int flags = header.getInt(), size = header.getInt();
+            long indexLength = header.getLong(), dataLength = header.getLong(), checksumOffset = header.getLong();
+            int blockSize = header.getInt();
+            FileBuffer f = new FileBuffer((flags & FLAG_LARGE) != 0);
+            if(size < 0 || indexLength != ((long) size << f.entryShift)
+                    || channel.size() < HEADER_SIZE + indexLength + dataLength) {
+                throw new IOException("Corrupted buffer file: " + path);
+            }
+            if(verify && (flags & FLAG_CHECKSUM) != 0) {
+                verify(channel, indexLength + dataLength, checksumOffset, blockSize, path);
+            }
+            f.indexBuffers = map(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE, indexLength, SEGMENT_SIZE);
+            f.dataBuffers = map(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE + indexLength, dataLength,
+                    1L << f.dataShift);
+            f.size = size;
+            f.dataSize = dataLength;
+            f.created = 1;
+            return f;
+        }
+    }
+
+    private static void verify(FileChannel channel, long length, long checksumOffset, int blockSize, Path path)
+            throws IOException {
+        int blocks = (int) ((length + blockSize - 1) / blockSize);
+        ByteBuffer table = ByteBuffer.allocate(blocks << 2), block = BufferPool.direct().acquire(blockSize);
+        try {
+            while(table.hasRemaining()) {
+                if(channel.read(table, checksumOffset + table.position()) < 0) {
+                    throw new IOException("Corrupted buffer file: " + path);
+                }
+            }
+            CRC32C crc = new CRC32C();
+            long position = HEADER_SIZE;
+            for(int i = 0; i < blocks; i++) {
+                block.clear().limit((int) Math.min(blockSize, length));
+                length -= block.limit();
+                while(block.hasRemaining()) {
+                    int n = channel.read(block, position);
+                    if(n < 0) {
+                        throw new IOException("Corrupted buffer file: " + path);
+                    }
+                    position += n;
+                }
+                crc.reset();
+                crc.update(block.flip());
+                if(table.getInt(i << 2) != (int) crc.getValue()) {
+                    throw new IOException("Checksum error in block " + i + ": " + path);
+                }
+            }
+        } finally {
+            BufferPool.direct().release(block);
+        }
+    }
+
+    private static class Checksums {
+
+        private final CRC32C crc = new CRC32C();
+        private int[] table = new int[64];
+        private int blocks = 0, inBlock = 0;
+
+        private void update(ByteBuffer b) {
+            while(b.hasRemaining()) {
+                int n = Math.min(b.remaining(), CHECKSUM_BLOCK_SIZE - inBlock);
+                crc.update(b.slice(b.position(), n));
+                b.position(b.position() + n);
+                inBlock += n;
+                if(inBlock == CHECKSUM_BLOCK_SIZE) {
+                    endBlock();
+                }
+            }
+        }
+
+        private void endBlock() {
+            if(blocks == table.length) {
+                table = Arrays.copyOf(table, blocks << 1);
+            }
+            table[blocks++] = (int) crc.getValue();
+            crc.reset();
+            inBlock = 0;
+        }
+
+        private ByteBuffer table() {
+            if(inBlock > 0) {
+                endBlock();
+            }
+            ByteBuffer b = ByteBuffer.allocate(blocks << 2);
+            b.asIntBuffer().put(table, 0, blocks);
+            return b;
+        }
+    }
+
+    private static File spill(List<byte[]> chunks, Comparator<byte[]> comparator, SortStatistics statistics)
+            throws IOException {
+        chunks.sort(comparator);
+        File file = createTempFile(".run");
+        try(DataOutputStream out = IO.getDataOutput(file)) {
+            for(byte[] chunk: chunks) {
+                writeRun(out, chunk);
+            }
+        }
+        chunks.clear();
+        statistics.spilledBytes += file.length();
+        return file;
+    }
+
+    private static List<File> mergePass(List<File> runs, Comparator<byte[]> comparator, SortStatistics statistics)
+            throws Exception {
+        ++statistics.mergePasses;
+        List<File> merged = new ArrayList<>();
+        try {
+            for(int i = 0; i < runs.size(); i += MERGE_FACTOR) {
+                File file = createTempFile(".run");
+                merged.add(file);
+                try(DataOutputStream out = IO.getDataOutput(file)) {
+                    merge(runs.subList(i, Math.min(i + MERGE_FACTOR, runs.size())), comparator,
+                            chunk -> writeRun(out, chunk));
+                }
+                statistics.spilledBytes += file.length();
+            }
+        } catch(Exception e) {
+            merged.forEach(File::delete);
+            throw e;
+        }
+        runs.forEach(File::delete);
+        return merged;
+    }
+
+    private static void merge(List<File> runs, Comparator<byte[]> comparator, EConsumer<byte[], Exception> consumer)
+            throws Exception {
+        // Ties are resolved by the run number so that the merge remains stable
+        PriorityQueue<Run> queue = new PriorityQueue<>(runs.size(), (r1, r2) -> {
+            int c = comparator.compare(r1.data, r2.data);
+            return c == 0 ? Integer.compare(r1.number, r2.number) : c;
+        });
+        AutoCloseableList open = new AutoCloseableList();
+        try {
+            Run run;
+            for(File file: runs) {
+                run = new Run(file, open.size());
+                open.add(run);
+                if(run.next()) {
+                    queue.add(run);
+                }
+            }
+            while((run = queue.poll()) != null) {
+                consumer.accept(run.data);
+                if(run.next()) {
+                    queue.add(run);
+                }
+            }
+        } finally {
+            open.close();
+        }
+    }
+
+    private static void writeRun(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static class Run implements AutoCloseable {
+
+        private final DataInputStream in;
+        private final int number;
+        private byte[] data;
+
+        private Run(File file, int number) throws IOException {
+            this.in = IO.getDataInput(file);
+            this.number = number;
+        }
+
+        private boolean next() throws IOException {
+            int len;
+            try {
+                len = in.readInt();
+            } catch(EOFException eof) {
+                data = null;
+                return false;
+            }
+            data = new byte[len];
+            in.readFully(data);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Eliminate duplicate data chunks. The indices are sorted according to the comparator passed (the data is not
+     * copied) and only the first data chunk of each set of equal data chunks is retained. So, the resulting buffer
+     * will be sorted too. The new buffer shares the data of this buffer and only a new index is written.
+     * <p>For a "compressed" buffer, the data is sorted using the external merge sort (see
+     * {@link #sort(Comparator, long)}) first and the resulting buffer shares the data of the sorted buffer.</p>
+     *
+     * @param comparator Comparator to compare the data chunks.
+     * @return Buffer without duplicates.
+     */
+    public FileBuffer distinct(Comparator<byte[]> comparator) {
+        if(compressed) {
+            FileBuffer sorted = sortExternally(comparator);
+            byte[][] previous = new byte[1][];
+            try {
+                return sorted.copy(i -> { // Invoked for each index in sequence
+                    byte[] current = sorted.read(i);
+                    if(previous[0] != null && comparator.compare(previous[0], current) == 0) {
+                        return false;
+                    }
+                    previous[0] = current;
+                    return true;
+                });
+            } finally {
+                sorted.close();
+            }
+        }
+        int[] positions = sortedPositions((i1, i2) -> comparator.compare(read(i1), read(i2)), false);
+        int count = 0;
+        byte[] previous = null, current;
+        for(int i = 0; i < size; i++) {
+            current = read(positions[i]);
+            if(i == 0 || comparator.compare(previous, current) != 0) {
+                positions[count++] = positions[i];
+                previous = current;
+            }
+        }
+        return derive(i -> positions[i], count);
+    }
+
+    /**
+     * Eliminate duplicate data chunks by hashing their keys. See {@link #distinct(Function, long)}. A quarter of the
+     * maximum heap memory is used as the memory limit.
+     *
+     * @param keyExtractor Function to extract the key from the read-only view of the data chunk.
+     * @return Buffer without duplicates.
+     * @throws Exception Throws if any error occurs.
+     */
+    public FileBuffer distinct(Function<ByteBuffer, byte[]> keyExtractor) throws Exception {
+        return distinct(keyExtractor, Runtime.getRuntime().maxMemory() >> 2);
+    }
+
+    /**
+     * Eliminate duplicate data chunks by hashing their keys. Data chunks are considered as duplicates if their keys
+     * have the same content. Only the first data chunk with a given key is retained and the order of the data
+     * chunks is not changed. The new buffer shares the data of this buffer and only a new index is written.
+     * <p>Normally, this is done in a single pass. However, if the keys seen so far could not be held within the memory
+     * limit specified, the keys of the rest of the data chunks are spilled to temporary partition files (based on their
+     * hash values) and each partition is processed later.</p>
+     *
+     * @param keyExtractor Function to extract the key from the read-only view of the data chunk (the key should not
+     *                     be modified later).
+     * @param memoryLimit Approximate heap memory (in bytes) that may be used for holding the keys. (Minimum 1 MB will
+     *                    be used.)
+     * @return Buffer without duplicates.
+     * @throws Exception Throws if any error occurs.
+     */
+    public FileBuffer distinct(Function<ByteBuffer, byte[]> keyExtractor, long memoryLimit) throws Exception {
+        if(created != 1) {
+            throw new IOException("Buffer is not ready for reading");
+        }
+        Cursor cursor = cursor();
+        Indices kept = new Indices();
+        boolean spilled = distinct(new KeySource() {
+
+            @Override
+            public boolean next() {
+                return cursor.next();
+            }
+
+            @Override
+            public int index() {
+                return cursor.getIndex();
+            }
+
+            @Override
+            public byte[] key() {
+                return keyExtractor.apply(cursor.buffer());
+            }
+        }, kept, Math.max(memoryLimit, MIN_SORT_MEMORY), 0);
+        int[] positions = Arrays.copyOf(kept.indices, kept.count);
+        if(spilled) {
+            Arrays.sort(positions);
+        }
+        FileBuffer f = derive(i -> positions[i], positions.length);
+        if(f == null) {
+            throw new IOException("Unable to create buffer");
+        }
+        return f;
+    }
+
+    private static boolean distinct(KeySource source, Indices kept, long memoryLimit, int level) throws IOException {
+        Set<ByteBuffer> seen = new HashSet<>();
+        Partitions partitions = null;
+        long used = 0;
+        ByteBuffer key;
+        try {
+            while(source.next()) {
+                key = ByteBuffer.wrap(source.key());
+                if(partitions == null) {
+                    if(seen.add(key)) {
+                        kept.add(source.index());
+                        used += key.capacity() + HASH_ENTRY_OVERHEAD;
+                        if(used >= memoryLimit && level < MAX_PARTITION_LEVEL) {
+                            partitions = new Partitions(level);
+                        }
+                    }
+                } else if(!seen.contains(key)) {
+                    partitions.write(source.index(), key.array());
+                }
+            }
+            if(partitions == null) {
+                return false;
+            }
+            seen = null; // Not required anymore
+            partitions.distinct(kept, memoryLimit);
+            return true;
+        } finally {
+            if(partitions != null) {
+                partitions.close();
+            }
+        }
+    }
+
+    /**
+     * Source of the keys of data chunks along with their indices.
+     */
+    private interface KeySource {
+        boolean next() throws IOException;
+        int index();
+        byte[] key();
+    }
+
+    private static class Indices {
+
+        private int[] indices = new int[1024];
+        private int count = 0;
+
+        private void add(int index) {
+            if(count == indices.length) {
+                indices = Arrays.copyOf(indices, count << 1);
+            }
+            indices[count++] = index;
+        }
+    }
+
+    /**
+     * Partition files containing the indices and the keys of data chunks, partitioned on the hash values of the keys.
+     * Each partitioning level uses a different set of bits from the hash value.
+     */
+    private static class Partitions implements AutoCloseable {
+
+        private final int level;
+        private final File[] files = new File[1 << PARTITION_BITS];
+        private final DataOutputStream[] outs = new DataOutputStream[files.length];
+
+        private Partitions(int level) {
+            this.level = level;
+        }
+
+        private void write(int index, byte[] key) throws IOException {
+            int h = Arrays.hashCode(key) * 0x9E3779B9, p = (h >>> (level * PARTITION_BITS)) & (files.length - 1);
+            if(outs[p] == null) {
+                files[p] = createTempFile(".part");
+                outs[p] = IO.getDataOutput(files[p]);
+            }
+            outs[p].writeInt(index);
+            writeRun(outs[p], key);
+        }
+
+        private void distinct(Indices kept, long memoryLimit) throws IOException {
+            for(int p = 0; p < files.length; p++) {
+                if(files[p] == null) {
+                    continue;
+                }
+                outs[p].close();
+                outs[p] = null;
+                try(DataInputStream in = IO.getDataInput(files[p])) {
+                    FileBuffer.distinct(new KeySource() {
+
+                        private int index;
+                        private byte[] key;
+
+                        @Override
+                        public boolean next() throws IOException {
+                            try {
+                                index = in.readInt();
+                            } catch(EOFException eof) {
+                                return false;
+                            }
+                            key = new byte[in.readInt()];
+                            in.readFully(key);
+                            return true;
+                        }
+
+                        @Override
+                        public int index() {
+                            return index;
+                        }
+
+                        @Override
+                        public byte[] key() {
+                            return key;
+                        }
+                    }, kept, memoryLimit, level + 1);
+                }
+                files[p].delete();
+                files[p] = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            for(int p = 0; p < files.length; p++) {
+                IO.close(outs[p]);
+                outs[p] = null;
+                if(files[p] != null) {
+                    files[p].delete();
+                    files[p] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Search for a data chunk using the binary search algorithm. The buffer must be sorted according to the same
+     * comparator (for example, a buffer obtained via {@link #sort(Comparator)}), otherwise, the result is undefined.
+     * If there are multiple data chunks equal to the key, there is no guarantee which one will be found.
+     * <p>Each probe is a random access and on a "compressed" buffer, it may decompress a block (up to about
+     * log<sub>2</sub>(size) blocks per search).</p>
+     *
+     * @param key Key to search for.
+     * @param comparator Comparator used for sorting the buffer.
+     * @return Index of the data chunk if found, otherwise, <code>(-(insertion point) - 1)</code> where the
+     * insertion point is the index of the first data chunk greater than the key (or {@link #size()} if all the data
+     * chunks are less than the key), just like {@link Arrays#binarySearch(int[], int)}.
+     */
+    public int binarySearch(byte[] key, Comparator<byte[]> comparator) {
+        int low = 0, high = size - 1, mid, c;
+        while(low <= high) {
+            mid = (low + high) >>> 1;
+            c = comparator.compare(read(mid), key);
+            if(c < 0) {
+                low = mid + 1;
+            } else if(c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Find the index of the first data chunk that is not less than the key. The buffer must be sorted according to
+     * the same comparator. (See {@link #binarySearch(byte[], Comparator)} for the cost on a "compressed" buffer.)
+     *
+     * @param key Key.
+     * @param comparator Comparator used for sorting the buffer.
+     * @return Index of the first data chunk greater than or equal to the key ({@link #size()} if there is none).
+     */
+    public int lowerBound(byte[] key, Comparator<byte[]> comparator) {
+        return bound(key, comparator, false);
+    }
+
+    /**
+     * Find the index of the first data chunk that is greater than the key. The buffer must be sorted according to
+     * the same comparator. The data chunks equal to the key will be in the range
+     * [{@link #lowerBound(byte[], Comparator)}, {@link #upperBound(byte[], Comparator)}). (See
+     * {@link #binarySearch(byte[], Comparator)} for the cost on a "compressed" buffer.)
+     *
+     * @param key Key.
+     * @param comparator Comparator used for sorting the buffer.
+     * @return Index of the first data chunk greater than the key ({@link #size()} if there is none).
+     */
+    public int upperBound(byte[] key, Comparator<byte[]> comparator) {
+        return bound(key, comparator, true);
+    }
+
+    private int bound(byte[] key, Comparator<byte[]> comparator, boolean upper) {
+        int low = 0, high = size, mid, c;
+        while(low < high) {
+            mid = (low + high) >>> 1;
+            c = comparator.compare(read(mid), key);
+            if(c < 0 || (upper && c == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get a range of this buffer as a new buffer. The new buffer shares the data of this buffer and only a new
+     * index is written. Typically, this is used with {@link #lowerBound(byte[], Comparator)} and
+     * {@link #upperBound(byte[], Comparator)} for getting all the data chunks matching a key from a sorted buffer.
+     *
+     * @param from Index from which the range starts (inclusive).
+     * @param to Index at which the range ends (exclusive).
+     * @return Buffer containing the data chunks in the range.
+     */
+    public FileBuffer range(int from, int to) {
+        if(from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of bounds for size " + size);
+        }
+        return derive(i -> from + i, to - from);
+    }
+
+    /**
+     * Group the data chunks and aggregate the values of each group in a single sequential pass. Consecutive data
+     * chunks with equal keys (as per {@link Object#equals(Object)}) form a group, and so, the buffer should be sorted
+     * on the key first. Only the aggregated values of the current group are held in memory.
+     * <p>For each group, the result function is invoked with the key of the group and the aggregated values (in the
+     * order of the aggregators passed) and the data chunk returned by it is written to the resulting buffer. If it
+     * returns <code>null</code>, nothing is written for that group. The array of values passed to the result function
+     * is re-used for the next group.</p>
+     * <p>The key extractor gets the read-only view of the data chunk that is valid only during the call, so the key
+     * should not retain a reference to it.</p>
+     *
+     * @param keyExtractor Function to extract the key from the read-only view of the data chunk.
+     * @param result Function to create the resulting data chunk of a group from its key and aggregated values.
+     * @param aggregators Aggregators (see {@link Aggregator#count()}, {@link Aggregator#sum(ToLongFunction)} etc.).
+     * @param <K> Type of the key.
+     * @return A new buffer containing the resulting data chunk of each group (already in read-only mode).
+     * @throws Exception Throws if any error occurs.
+     */
+    public <K> FileBuffer groupBy(Function<ByteBuffer, K> keyExtractor, BiFunction<K, long[], byte[]> result,
+                                  Aggregator... aggregators) throws Exception {
+        if(created != 1) {
+            throw new IOException("Buffer is not ready for reading");
+        }
+        FileBuffer f = new FileBuffer(large, compressed);
+        f.begin();
+        try {
+            if(f.created != 0) {
+                throw new IOException("Unable to create buffer");
+            }
+            long[] values = new long[aggregators.length];
+            Cursor cursor = cursor();
+            ByteBuffer data;
+            K key = null, k;
+            byte[] group;
+            while(cursor.next()) {
+                data = cursor.buffer().mark();
+                k = keyExtractor.apply(data);
+                data.reset();
+                if(cursor.getIndex() == 0 || !Objects.equals(key, k)) {
+                    if(cursor.getIndex() > 0 && (group = result.apply(key, values)) != null) {
+                        f.write(group);
+                    }
+                    key = k;
+                    for(int i = 0; i < aggregators.length; i++) {
+                        values[i] = aggregators[i].initial();
+                    }
+                }
+                for(int i = 0; i < aggregators.length; i++) {
+                    values[i] = aggregators[i].accumulate(values[i], data);
+                    data.reset();
+                }
+            }
+            if(size > 0 && (group = result.apply(key, values)) != null) {
+                f.write(group);
+            }
+            f.end();
+            if(f.created != 1) {
+                throw new IOException("Unable to create buffer");
+            }
+        } catch(Exception e) {
+            f.close();
+            throw e;
+        }
+        return f;
+    }
+
+    /**
+     * An aggregator that accumulates a <code>long</code> value over the data chunks of a group
+     * (see {@link FileBuffer#groupBy(Function, BiFunction, Aggregator...)}). An aggregator does not hold any state
+     * and may be used for any number of groups.
+     *
+     * @author Syam
+     */
+    public interface Aggregator {
+
+        /**
+         * Get the initial value of the aggregate at the start of a group.
+         *
+         * @return Initial value.
+         */
+        long initial();
+
+        /**
+         * Accumulate a data chunk into the aggregate.
+         *
+         * @param value Current value of the aggregate.
+         * @param data Read-only view of the data chunk (valid only during the call).
+         * @return New value of the aggregate.
+         */
+        long accumulate(long value, ByteBuffer data);
+
+        /**
+         * Aggregator that counts the data chunks.
+         *
+         * @return Aggregator.
+         */
+        static Aggregator count() {
+            return new SimpleAggregator(0, (value, data) -> value + 1);
+        }
+
+        /**
+         * Aggregator that sums up a field decoded from the data chunks.
+         *
+         * @param field Function to decode the field.
+         * @return Aggregator.
+         */
+        static Aggregator sum(ToLongFunction<ByteBuffer> field) {
+            return new SimpleAggregator(0, (value, data) -> value + field.applyAsLong(data));
+        }
+
+        /**
+         * Aggregator that finds the minimum of a field decoded from the data chunks.
+         *
+         * @param field Function to decode the field.
+         * @return Aggregator.
+         */
+        static Aggregator min(ToLongFunction<ByteBuffer> field) {
+            return new SimpleAggregator(Long.MAX_VALUE, (value, data) -> Math.min(value, field.applyAsLong(data)));
+        }
+
+        /**
+         * Aggregator that finds the maximum of a field decoded from the data chunks.
+         *
+         * @param field Function to decode the field.
+         * @return Aggregator.
+         */
+        static Aggregator max(ToLongFunction<ByteBuffer> field) {
+            return new SimpleAggregator(Long.MIN_VALUE, (value, data) -> Math.max(value, field.applyAsLong(data)));
+        }
+    }
+
+    private record SimpleAggregator(long initial, Accumulation accumulation) implements Aggregator {
+
+        @Override
+        public long accumulate(long value, ByteBuffer data) {
+            return accumulation.apply(value, data);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Accumulation {
+        long apply(long value, ByteBuffer data);
+    }
+
+    /**
+     * Type of join (see {@link FileBuffer#join(FileBuffer, Comparator, JoinType, EBiConsumer)}).
+     *
+     * @author Syam
+     */
+    public enum JoinType {
+        /**
+         * Every matching pair of data chunks.
+         */
+        INNER,
+        /**
+         * Every matching pair of data chunks and the data chunks of the left buffer without any match.
+         */
+        LEFT_OUTER,
+        /**
+         * The data chunks of the left buffer without any match.
+         */
+        ANTI
+    }
+
+    /**
+     * Join this buffer (left) with another buffer (right) using the merge-join algorithm. Both the buffers must be
+     * sorted on the join key and the comparator should compare the join keys of a left and a right data chunk
+     * consistently with the sort order. Both the buffers are visited only once (a group of right data chunks with the
+     * same key is re-visited for each left data chunk having that key) and no data is held in memory.
+     * <p>The consumer is invoked with the read-only views of the left data chunk and the matching right data chunk.
+     * For the left data chunks without any match, the right view will be <code>null</code>
+     * (only for {@link JoinType#LEFT_OUTER} and {@link JoinType#ANTI} joins). The views are valid only during the
+     * call.</p>
+     *
+     * @param right Right buffer.
+     * @param comparator Comparator to compare the read-only views of a left and a right data chunk.
+     * @param type Type of join.
+     * @param consumer Consumer of the joined data chunks.
+     * @throws Exception Throws if any error occurs, including the exception thrown by the consumer.
+     */
+    public void join(FileBuffer right, Comparator<ByteBuffer> comparator, JoinType type,
+                     EBiConsumer<ByteBuffer, ByteBuffer, Exception> consumer) throws Exception {
+        if(created != 1 || right.created != 1) {
+            throw new IOException("Buffer is not ready for reading");
+        }
+        Cursor l = cursor(), r = right.cursor();
+        int j = 0, k, rightSize = right.size;
+        boolean matched;
+        for(int i = 0; i < size; i++) {
+            while(j < rightSize && comparator.compare(l.moveTo(i), r.moveTo(j)) > 0) {
+                ++j;
+            }
+            matched = false;
+            for(k = j; k < rightSize && comparator.compare(l.moveTo(i), r.moveTo(k)) == 0; k++) {
+                matched = true;
+                if(type == JoinType.ANTI) {
+                    break;
+                }
+                consumer.accept(l.moveTo(i), r.moveTo(k));
+            }
+            if(!matched && type != JoinType.INNER) {
+                consumer.accept(l.moveTo(i), null);
+            }
+        }
+    }
+
+    /**
+     * Apply a filter to the buffer.
+     *
+     * @param filter Filter to be applied.
+     * @return Filtered buffer (if the filter is <code>null</code> or if all the data chunks are satisfying the
+     * filter, then, the same buffer will be returned).
+     */
+    public FileBuffer filter(Predicate<byte[]> filter) {
+        if(filter == null) {
+            return this;
+        }
+        return select(i -> filter.test(read(i)));
+    }
+
+    /**
+     * Apply a filter to the buffer. The filter works directly on the read-only views of the data
+     * (see {@link #view(int)}) and no data is copied while filtering.
+     *
+     * @param filter Filter to be applied.
+     * @return Filtered buffer (if the filter is <code>null</code> or if all the data chunks are satisfying the
+     * filter, then, the same buffer will be returned).
+     */
+    public FileBuffer filterViews(Predicate<ByteBuffer> filter) {
+        if(filter == null) {
+            return this;
+        }
+        Cursor cursor = cursor();
+        return select(i -> filter.test(cursor.moveTo(i)));
+    }
+
+    /**
+     * Get a stream of indices of this buffer. This is typically used for selecting data chunks via
+     * {@link #select(IntStream)}. The stream may be turned into a parallel stream.
+     *
+     * @return Stream of indices.
+     */
+    public IntStream indices() {
+        return IntStream.range(0, size);
+    }
+
+    /**
+     * Get a stream of the read-only views of the data chunks (see {@link #view(int)}). The stream is ordered and may
+     * be turned into a parallel stream, in which case, the range of indices is split between the threads.
+     *
+     * @return Stream of read-only views.
+     */
+    public Stream<ByteBuffer> stream() {
+        return StreamSupport.stream(new ViewSpliterator(0, size), false);
+    }
+
+    /**
+     * Create a thread-safe predicate on the indices of this buffer from a predicate on the read-only views of the
+     * data chunks. No data is copied and no allocation happens while testing. This is typically used for filtering
+     * the stream of {@link #indices()}.
+     *
+     * @param filter Filter on the data chunks.
+     * @return Predicate on the indices.
+     */
+    public IntPredicate matching(Predicate<ByteBuffer> filter) {
+        ThreadLocal<Cursor> cursor = ThreadLocal.withInitial(this::cursor);
+        return i -> filter.test(cursor.get().moveTo(i));
+    }
+
+    /**
+     * Select the data chunks at the given indices into a new buffer. The new buffer shares the data of this buffer
+     * and only a new index is written, in the encounter order of the stream. Filters chained on the stream (that may
+     * be a parallel stream) are carried out in a single pass. For example:
+     * <pre>
+     * buffer.select(buffer.indices().parallel().filter(buffer.matching(filter1)).filter(buffer.matching(filter2)));
+     * </pre>
+     *
+     * @param indices Indices to select.
+     * @return Buffer containing the selected data chunks.
+     */
+    public FileBuffer select(IntStream indices) {
+        int[] positions = indices.toArray();
+        return derive(i -> positions[i], positions.length);
+    }
+
+    /**
+     * Create a buffer from a stream of data chunks. The data chunks are written in the encounter order of the stream.
+     * Typically, this is used for writing the result of a stream pipeline (that may contain parallel filter/map
+     * steps) built on {@link #stream()} to a new buffer in a single pass.
+     *
+     * @param data Data chunks.
+     * @param large Whether to create a "large" buffer or not.
+     * @return A new buffer (already in read-only mode).
+     * @throws Exception Throws if any error occurs.
+     */
+    public static FileBuffer of(Stream<byte[]> data, boolean large) throws Exception {
+        FileBuffer f = new FileBuffer(large);
+        f.begin();
+        try {
+            if(f.created != 0) {
+                throw new IOException("Unable to create buffer");
+            }
+            data.forEachOrdered(EConsumer.wrap(f::write));
+            f.end();
+            if(f.created != 1) {
+                throw new IOException("Unable to create buffer");
+            }
+        } catch(SORuntimeException e) {
+            f.close();
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } catch(Exception e) {
+            f.close();
+            throw e;
+        }
+        return f;
+    }
+
+    private class ViewSpliterator implements Spliterator<ByteBuffer> {
+
+        private int from;
+        private final int to;
+
+        private ViewSpliterator(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            if(from >= to) {
+                return false;
+            }
+            action.accept(view(from++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super ByteBuffer> action) {
+            while(from < to) {
+                action.accept(view(from++));
+            }
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() {
+            int mid = (from + to) >>> 1;
+            if(mid <= from) {
+                return null;
+            }
+            ViewSpliterator s = new ViewSpliterator(from, mid);
+            from = mid;
+            return s;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+        }
+    }
+
+    private FileBuffer select(IntPredicate filter) {
+        FileBuffer f = copy(filter);
+        if(f != null) {
+            if(f.size == size) {
+                f.indexFile.delete();
+                return this;
+            }
+            chain(f);
+        }
+        return f;
+    }
+
+    private void chain(FileBuffer f) {
+        if(child == null) {
+            child = f;
+            f.parent = this;
+            return;
+        }
+        child.chain(f);
+    }
+
+    private FileBuffer derive(IntUnaryOperator positions, int count) {
+        FileBuffer f = new FileBuffer(large, compressed);
+        f.dataBuffers = dataBuffers;
+        f.dataSize = dataSize;
+        if(blocks != null) {
+            f.blocks = blocks;
+            f.closeables.add(blocks.share());
+        }
+        try {
+            f.indexFile = createTempFile(".index");
+            f.indexOut = IO.getDataOutput(f.indexFile);
+            for(int i = 0; i < count; i++) {
+                writeOffset(f.indexOut, offset(positions.applyAsInt(i)));
+            }
+            f.indexOut.close();
+            f.size = count;
+            f.indexBuffers = map(f.indexFile, FileChannel.MapMode.READ_ONLY, SEGMENT_SIZE);
+            f.created = 1;
+        } catch(Exception e) {
+            f.created = -1;
+        } finally {
+            IO.close(f.indexOut);
+            if(f.created != 1) {
+                if(f.indexFile != null) {
+                    f.indexFile.delete();
+                }
+                f = null;
+            }
+        }
+        return f;
+    }
+
+    private FileBuffer copy(IntPredicate filter) {
+        FileBuffer f = new FileBuffer(large, compressed);
+        f.dataBuffers = dataBuffers;
+        f.dataSize = dataSize;
+        if(blocks != null) {
+            f.blocks = blocks;
+            f.closeables.add(blocks.share());
+        }
+        try {
+            f.indexFile = createTempFile(".index");
+            f.indexOut = IO.getDataOutput(f.indexFile);
+            for(int i = 0; i < size; i++) {
+                if(!filter.test(i)) {
+                    continue;
+                }
+                f.size++;
+                writeOffset(f.indexOut, offset(i));
+            }
+            f.indexOut.close();
+            f.indexBuffers = map(f.indexFile, FileChannel.MapMode.READ_ONLY, SEGMENT_SIZE);
+            f.created = 1;
+        } catch(Exception e) {
+            f.created = -1;
+        } finally {
+            IO.close(f.indexOut);
+            if(f.created != 1) {
+                f.indexFile.delete();
+                f = null;
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Compressed blocks of data, shared between a compressed buffer and the buffers derived from it.
+     */
+    private static class Blocks {
+
+        private long[] positions = new long[64];
+        private int[] lengths = new int[64];
+        private int count = 0, users = 0;
+        private long length = 0;
+        private FileChannel channel;
+        private final LinkedHashMap<Integer, ByteBuffer> cache = new LinkedHashMap<>(CACHED_BLOCKS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+                return size() > CACHED_BLOCKS;
+            }
+        };
+
+        private void add(long compressedLength, int uncompressedLength) {
+            if(count == lengths.length) {
+                positions = Arrays.copyOf(positions, count << 1);
+                lengths = Arrays.copyOf(lengths, count << 1);
+            }
+            positions[count] = length;
+            lengths[count++] = uncompressedLength;
+            length += compressedLength;
+        }
+
+        private void open(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        private ByteBuffer get(int block) {
+            ByteBuffer b;
+            synchronized(cache) {
+                b = cache.get(block);
+            }
+            if(b != null) {
+                return b;
+            }
+            long position = positions[block];
+            ByteBuffer compressed = ByteBuffer.allocate((int) ((block + 1 == count ? length : positions[block + 1])
+                    - position));
+            byte[] data = new byte[lengths[block]];
+            Inflater inflater = new Inflater();
+            try {
+                while(compressed.hasRemaining()) {
+                    int n = channel.read(compressed, position + compressed.position());
+                    if(n < 0) {
+                        throw new IOException("Unexpected end of data");
+                    }
+                }
+                inflater.setInput(compressed.array());
+                int n = 0;
+                while(n < data.length && !inflater.finished()) {
+                    int r = inflater.inflate(data, n, data.length - n);
+                    if(r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("Truncated block");
+                    }
+                    n += r;
+                }
+            } catch(IOException | DataFormatException e) {
+                throw new SORuntimeException("Unable to read block " + block, e);
+            } finally {
+                inflater.end();
+            }
+            b = ByteBuffer.wrap(data).asReadOnlyBuffer();
+            synchronized(cache) {
+                cache.put(block, b);
+            }
+            return b;
+        }
+
+        private synchronized AutoCloseable share() {
+            ++users;
+            return new AutoCloseable() {
+
+                private boolean closed = false;
+
+                @Override
+                public void close() {
+                    synchronized(Blocks.this) {
+                        if(closed) {
+                            return;
+                        }
+                        closed = true;
+                        if(--users == 0) {
+                            IO.close(channel);
+                            channel = null;
+                            synchronized(cache) {
+                                cache.clear();
+                            }
+                        }
+                    }
+                }
+            };
+        }
+    }
+
+    private static File createTempFile(String extension) throws IOException {
+        File file = File.createTempFile("SOBuffer", extension);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private void setOffset(int index, long offset) {
+        ByteBuffer b = indexBuffers[index >>> indexShift];
+        int position = (index & indexMask) << entryShift;
+        if(longOffsets) {
+            b.putLong(position, offset);
+        } else {
+            b.putInt(position, (int) offset);
+        }
+    }
+
+    private synchronized void setWritable() {
+        if(writable) {
+            return;
+        }
+        try {
+            if(indexFile == null) { // Opened from a saved file, the file itself should not be modified
+                indexFile = createTempFile(".index");
+                try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE)) {
+                    write(channel, indexBuffers, (long) size << entryShift, null);
+                }
+            }
+            indexBuffers = map(indexFile, FileChannel.MapMode.READ_WRITE, SEGMENT_SIZE);
             writable = true;
         } catch(Exception e) {
-            IO.close(file);
             close();
         }
     }
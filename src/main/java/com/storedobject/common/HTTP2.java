@@ -547,7 +547,7 @@ public class HTTP2 {
 
         private String toString(InputStream in) {
             try {
-                return StringUtility.toString(in);
+                return StringUtility.toString(in, contentLength(response));
             } catch (Exception e) {
                 error(e);
                 return null;
@@ -589,6 +589,19 @@ public class HTTP2 {
         }
     }
 
+    /**
+     * Get the length of the content from the "Content-Length" header if the content is not encoded.
+     *
+     * @param response Response.
+     * @return Length or -1 if not known.
+     */
+    private static long contentLength(HttpResponse<?> response) {
+        if(response == null || response.headers().firstValue("Content-Encoding").isPresent()) {
+            return -1;
+        }
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
     private static class ChunkedInputStream extends InputStream {
 
         private final InputStream in;
@@ -640,6 +653,14 @@ public class HTTP2 {
             return Integer.parseInt(hex.toString(), 16);
         }
 
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!isChunked) {
+                return in.read(b, off, len);
+            }
+            return super.read(b, off, len);
+        }
+
         @Override
         public int available() throws IOException {
             return isChunked ? 0 : in.available();
@@ -676,6 +697,11 @@ public class HTTP2 {
             return decompressedStream.read();
         }
 
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return decompressedStream.read(b, off, len);
+        }
+
         @Override
         public int available() throws IOException {
             return decompressedStream.available();
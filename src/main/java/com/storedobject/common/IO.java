@@ -19,10 +19,13 @@ package com.storedobject.common;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Generic Input/Output routines.
@@ -36,6 +39,8 @@ public class IO {
     private static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
     private static final int MIN_BUFFER_SIZE = 2048;
     private static final int MAX_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_TRANSFER_SIZE = 8L * 1024 * 1024;
+    private static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
 
     private IO() {}
 
@@ -51,6 +56,9 @@ public class IO {
 
     /**
      * Copy one stream to another. Both the streams will be closed.
+     * <p>If the source is a {@link FileInputStream} and the destination is a {@link FileOutputStream}, the content is
+     * transferred between their channels (see {@link #copy(ReadableByteChannel, WritableByteChannel)}) without
+     * copying it to the heap. If the source is a {@link ByteArrayInputStream}, its content is written in one go.</p>
      * @param input Source stream
      * @param output Destination stream
      * @param bufferSize Buffer size to use
@@ -58,12 +66,42 @@ public class IO {
      */
     public static void copy(InputStream input, OutputStream output, int bufferSize) throws IOException {
         bufferSize = Math.max(Math.min(MAX_BUFFER_SIZE, bufferSize), MIN_BUFFER_SIZE);
-        try(InputStream in = get(input); OutputStream out = get(output)) {
-            byte[] buf = new byte[bufferSize];
-            int r;
-            while((r = in.read(buf)) != -1) {
-                out.write(buf, 0, r);
+        InputStream source = input instanceof NoCloseInputStream nc ? nc.source() : input;
+        OutputStream target = output instanceof NoCloseOutputStream nc ? nc.target() : output;
+        if(source instanceof FileInputStream fin && target instanceof FileOutputStream fout) {
+            try {
+                transfer(fin.getChannel(), fout.getChannel(), bufferSize);
+            } finally {
+                close(input, output);
             }
+            return;
+        }
+        if(source instanceof ByteArrayInputStream) {
+            try {
+                source.transferTo(target);
+                output.flush();
+            } finally {
+                close(input, output);
+            }
+            return;
+        }
+        // The buffer is borrowed from the pool and it collects what is read until it is full, so no more buffering
+        byte[] buf = BufferPool.heap().acquire(bufferSize);
+        try(InputStream in = input; OutputStream out = output) {
+            int r, n = 0;
+            while((r = in.read(buf, n, bufferSize - n)) != -1) {
+                n += r;
+                if(n == bufferSize) {
+                    out.write(buf, 0, n);
+                    n = 0;
+                }
+            }
+            if(n > 0) {
+                out.write(buf, 0, n);
+            }
+            out.flush();
+        } finally {
+            BufferPool.heap().release(buf);
         }
     }
 
@@ -104,6 +142,10 @@ public class IO {
             super(in);
         }
 
+        private InputStream source() {
+            return in;
+        }
+
         @Override
         public void close() {
         }
@@ -115,11 +157,95 @@ public class IO {
             super(out);
         }
 
+        private OutputStream target() {
+            return out;
+        }
+
         @Override
         public void close() {
         }
     }
 
+    /**
+     * Copy from one channel to another. Both the channels will be closed.
+     * <p>If either of the channels is a {@link FileChannel}, its transferTo/transferFrom methods are used so that the
+     * operating system can move the content directly (for example, from a file to a socket channel) without copying it
+     * to the user space. The channels are expected to be in the blocking mode.</p>
+     * @param input Source channel
+     * @param output Destination channel
+     * @throws IOException I/O exception
+     */
+    public static void copy(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        copy(input, output, true);
+    }
+
+    /**
+     * Copy from one channel to another (see {@link #copy(ReadableByteChannel, WritableByteChannel)}).
+     * @param input Source channel
+     * @param output Destination channel
+     * @param close Whether to close the channels or not
+     * @throws IOException I/O exception
+     */
+    public static void copy(ReadableByteChannel input, WritableByteChannel output, boolean close) throws IOException {
+        try {
+            transfer(input, output, DEFAULT_BUFFER_SIZE);
+        } finally {
+            if(close) {
+                close(input, output);
+            }
+        }
+    }
+
+    /**
+     * Check whether a file channel is positionable (a regular file) or not (a pipe, FIFO etc.).
+     *
+     * @param channel Channel.
+     * @return True or false.
+     */
+    private static boolean seekable(FileChannel channel) {
+        try {
+            channel.position();
+            return true;
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    private static void transfer(ReadableByteChannel input, WritableByteChannel output, int bufferSize)
+            throws IOException {
+        long position, n;
+        // Channel transfers are used only with regular files, pipes and FIFOs are handled by the buffer loop below
+        boolean regular = !(input instanceof FileChannel in && !seekable(in))
+                && !(output instanceof FileChannel out && !seekable(out));
+        if(regular && input instanceof FileChannel in) {
+            position = in.position();
+            long size = in.size();
+            while(position < size && (n = in.transferTo(position, size - position, output)) > 0) {
+                position += n;
+            }
+            in.position(position);
+        } else if(regular && output instanceof FileChannel out) {
+            position = out.position();
+            while((n = out.transferFrom(input, position, MAX_TRANSFER_SIZE)) > 0) {
+                position += n;
+            }
+            out.position(position);
+        }
+        // Whatever is remaining (nothing, in most of the cases)
+        ByteBuffer buffer = BufferPool.direct().acquire(bufferSize);
+        try {
+            while(input.read(buffer) >= 0) {
+                buffer.flip();
+                while(buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.direct().release(buffer);
+        }
+    }
+
     /**
      * Copy from reader to writer. Both reader and writer will be closed.
      * @param reader Reader
@@ -756,32 +882,115 @@ public class IO {
     }
 
     /**
-     * Create a read only byte buffer from the content of the input stream.
+     * Create a read only byte buffer from the content of the input stream. The input stream will be closed.
+     * <p>If the stream is a {@link FileInputStream} of a regular file, the file is mapped directly (from the current
+     * position). Otherwise, the content is kept in memory if it is not larger than 1 MB, and larger content is spilled
+     * to a temporary file that is mapped (see {@link #readOnlyByteBuffer(InputStream, int)}).</p>
      *
      * @param in Input stream
      * @return A read only byte buffer containing the content of the input stream.
      * @throws IOException if IO can not be happen.
      */
     public static ByteBuffer readOnlyByteBuffer(InputStream in) throws IOException {
-        return byteBuf(in, FileChannel.MapMode.READ_ONLY, "r");
+        return byteBuf(in, true, DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * Create a read only byte buffer from the content of the input stream. The input stream will be closed.
+     * <p>If the stream is a {@link FileInputStream} of a regular file, the file is mapped directly (from the current
+     * position). If the stream is a {@link ByteArrayInputStream}, the content is always kept in memory. Otherwise,
+     * the content is kept in memory if it is not larger than the threshold, and larger content is spilled to a
+     * temporary file that is mapped. The temporary file is deleted as soon as it is mapped (on some platforms, the
+     * deletion takes effect only when the buffer is garbage collected).</p>
+     *
+     * @param in Input stream
+     * @param memoryThreshold Maximum size of the content to keep in memory.
+     * @return A read only byte buffer containing the content of the input stream.
+     * @throws IOException if IO can not be happen.
+     */
+    public static ByteBuffer readOnlyByteBuffer(InputStream in, int memoryThreshold) throws IOException {
+        return byteBuf(in, true, memoryThreshold);
     }
 
     /**
-     * Create a read/write byte buffer from the content of the input stream.
+     * Create a read/write byte buffer from the content of the input stream. The input stream will be closed.
+     * Changes made to the buffer are not written back to the source. (See {@link #readOnlyByteBuffer(InputStream)} for
+     * the details of how the buffer is created, except that a {@link FileInputStream} is not mapped directly).
      *
      * @param in Input stream
      * @return A read/write byte buffer containing the content of the input stream.
      * @throws IOException if buffer can not be created.
      */
     public static ByteBuffer byteBuffer(InputStream in) throws IOException {
-        return byteBuf(in, FileChannel.MapMode.READ_WRITE, "rw");
+        return byteBuf(in, false, DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /**
+     * Create a read/write byte buffer from the content of the input stream. The input stream will be closed.
+     * Changes made to the buffer are not written back to the source. (See
+     * {@link #readOnlyByteBuffer(InputStream, int)} for the details of how the buffer is created, except that a
+     * {@link FileInputStream} is not mapped directly).
+     *
+     * @param in Input stream
+     * @param memoryThreshold Maximum size of the content to keep in memory.
+     * @return A read/write byte buffer containing the content of the input stream.
+     * @throws IOException if buffer can not be created.
+     */
+    public static ByteBuffer byteBuffer(InputStream in, int memoryThreshold) throws IOException {
+        return byteBuf(in, false, memoryThreshold);
+    }
+
+    private static ByteBuffer byteBuf(InputStream in, boolean readOnly, int memoryThreshold) throws IOException {
+        // Private (copy-on-write) mapping for read/write so that the changes never reach the file
+        FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.PRIVATE;
+        try(in) {
+            InputStream source = in;
+            if(in instanceof FileInputStream fin) {
+                FileChannel channel = fin.getChannel();
+                if(!seekable(channel)) { // A pipe or a FIFO (bulk reads of FileInputStream may try to seek)
+                    source = new BufferedInputStream(in, DEFAULT_BUFFER_SIZE);
+                } else if(readOnly) { // Private mapping requires a writable channel
+                    long position = channel.position();
+                    return channel.map(mode, position, channel.size() - position);
+                }
+            }
+            byte[] data;
+            int next = -1;
+            if(source instanceof ByteArrayInputStream) {
+                data = source.readAllBytes();
+            } else {
+                data = source.readNBytes(Math.max(0, memoryThreshold));
+                if(data.length >= memoryThreshold) {
+                    next = source.read();
+                }
+            }
+            if(next == -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                return readOnly ? buffer.asReadOnlyBuffer() : buffer;
+            }
+            Path file = Files.createTempFile("SOBuffer", ".data");
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                write(channel, ByteBuffer.wrap(data));
+                write(channel, ByteBuffer.wrap(new byte[] { (byte) next }));
+                byte[] b = BufferPool.heap().acquire(DEFAULT_BUFFER_SIZE);
+                try {
+                    int n;
+                    while((n = source.read(b)) >= 0) {
+                        write(channel, ByteBuffer.wrap(b, 0, n));
+                    }
+                } finally {
+                    BufferPool.heap().release(b);
+                }
+                return channel.map(mode, 0, channel.size());
+            }
+        }
     }
 
-    private static ByteBuffer byteBuf(InputStream in, FileChannel.MapMode mode, String fileMode) throws IOException {
-        File file = File.createTempFile("SOBuffer", ".data");
-        file.deleteOnExit();
-        copy(get(in), new FileOutputStream(file));
-        return new RandomAccessFile(file, fileMode).getChannel().map(mode, 0, file.length());
+    private static void write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
     }
 
     /**
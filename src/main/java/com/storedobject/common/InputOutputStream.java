@@ -19,23 +19,81 @@ package com.storedobject.common;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 /**
  * A class that combines an {@link InputStream} and an {@link OutputStream}. One thread may be writing to it and another
  * may be reading from it.
+ * <p>In the "lock-free" mode (see {@link #InputOutputStream(int, boolean, boolean)}), the reader and the writer
+ * coordinate via acquire/release updates of the read and write counters and a thread is parked only when the buffer
+ * is empty (reader) or full (writer). In this mode, only one thread may be reading and only one thread may be writing
+ * at any time.</p>
+ * <p>In the "broadcast" mode (see {@link #newInputStream()}), there can be several independent input streams, each
+ * with its own read position, reading the same data. The writer waits only for the slowest of them.</p>
+ * <p>Statistics of the data flow (see {@link PipeStatistics}) are collected and reported to a listener when both the
+ * streams are closed. By default, they are recorded as JFR events (named "com.storedobject.common.Pipe"), see
+ * {@link #setStatisticsListener(Consumer)}.</p>
+ * <p>The buffer may be a direct {@link ByteBuffer} so that the data can be transferred to and from NIO channels
+ * without copying (see {@link #transferTo(WritableByteChannel)} and {@link #transferFrom(ReadableByteChannel)}).</p>
+ * <p>In the "adaptive" mode (see {@link #InputOutputStream(int, int, boolean)}), the buffer grows when the writer keeps
+ * waiting because the buffer is full and shrinks back when the reader is idle for a while.</p>
  *
  * @author Syam
  */
 public class InputOutputStream implements AutoCloseable {
 
-    private final byte[] buffer;
-    private int wPointer = 0, rPointer = 0;
-    private volatile int generated = 0, consumed = 0;
-    private boolean wEOF = false, rEOF = false, wWait = false, rWait = false;
+    private static final VarHandle GENERATED, CONSUMED;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            GENERATED = lookup.findVarHandle(InputOutputStream.class, "generated", long.class);
+            CONSUMED = lookup.findVarHandle(InputOutputStream.class, "consumed", long.class);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    private static final int GROW_AFTER = 4; // Number of times the writer waits before the buffer grows
+    private static final long IDLE_TIME = 1000; // Milliseconds after which an idle buffer shrinks
+    private ByteBuffer buffer;
+    private int capacity;
+    private final int minimum, maximum;
+    private final boolean lockFree, direct, adaptive, pooled;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition(), spaceAvailable = lock.newCondition();
+    private volatile Thread parkedReader, parkedWriter;
+    private int wPointer = 0;
+    private volatile long generated = 0, consumed = 0; // In the "broadcast" mode, consumed is that of the slowest
+    private volatile boolean wEOF = false, rEOF = false, wWait = false, rWait = false;
+    private volatile Exception external;
     private IStream reader;
+    private List<IStream> readers;
     private OStream writer;
     private boolean reusable;
     private Runnable dataListener;
+    private volatile long writerBlocked, readerBlocked, writerWakeUps, readerWakeUps, peakFill;
+    private long producedBefore, consumedBefore; // Before the last "rewind"
+    private Consumer<PipeStatistics> statisticsListener = InputOutputStream::record;
+    private boolean reported = false;
+    private int waits = 0, inFlight = 0; // Adaptive mode: Writer waits since the last resize, Readers copying
+    private boolean grow = false, writing = false;
 
     /**
      * Constructor with a default buffer size of 8K.
@@ -50,10 +108,94 @@ public class InputOutputStream implements AutoCloseable {
      * @param bufferSize Buffer size
      */
     public InputOutputStream(int bufferSize) {
-        if(bufferSize < 64) {
-            bufferSize = 64;
+        this(bufferSize, false, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize Buffer size
+     * @param lockFree Whether to use the "lock-free" mode or not. In this mode, only a single thread may be reading and
+     *                 only a single thread may be writing at any time.
+     * @param direct Whether to use a direct buffer or not.
+     */
+    public InputOutputStream(int bufferSize, boolean lockFree, boolean direct) {
+        this(bufferSize, bufferSize, lockFree, direct, false, false);
+    }
+
+    /**
+     * Constructor for the "adaptive" mode. In this mode, the buffer starts with the minimum size and it is doubled
+     * (up to the maximum size) whenever the writer keeps waiting because the buffer is full. When the reader is idle
+     * for a while (about a second) with nothing in the buffer, it shrinks back to the minimum size. Buffers of this
+     * mode are never direct and the "lock-free" mode is not supported.
+     *
+     * @param minimumSize Minimum buffer size.
+     * @param maximumSize Maximum buffer size.
+     * @param pooled Whether to pool the buffers or not. Pooled buffers are taken from (and released to) the
+     *               shared {@link BufferPool#heap() heap pool}. A buffer is released when the streams are closed or
+     *               aborted, and it is an error to use the streams after that.
+     */
+    public InputOutputStream(int minimumSize, int maximumSize, boolean pooled) {
+        this(minimumSize, maximumSize, false, false, true, pooled);
+    }
+
+    private InputOutputStream(int minimumSize, int maximumSize, boolean lockFree, boolean direct, boolean adaptive,
+                              boolean pooled) {
+        if(minimumSize < 64) {
+            minimumSize = 64;
+        }
+        if(maximumSize < minimumSize) {
+            maximumSize = minimumSize;
+        }
+        this.minimum = minimumSize;
+        this.maximum = maximumSize;
+        this.lockFree = lockFree;
+        this.direct = direct;
+        this.adaptive = adaptive;
+        this.pooled = pooled;
+        buffer = direct ? ByteBuffer.allocateDirect(minimumSize) : ByteBuffer.wrap(allocate(minimumSize));
+        capacity = minimumSize;
+    }
+
+    /**
+     * Check whether this is in the "lock-free" mode or not.
+     *
+     * @return True or false.
+     */
+    public final boolean isLockFree() {
+        return lockFree;
+    }
+
+    /**
+     * Check whether this uses a direct buffer or not.
+     *
+     * @return True or false.
+     */
+    public final boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Check whether this is in the "adaptive" mode or not.
+     *
+     * @return True or false.
+     */
+    public final boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Get the current size of the buffer. (In the "adaptive" mode, it may change as the data flows).
+     *
+     * @return Size in bytes.
+     */
+    public int getBufferSize() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
         }
-        buffer = new byte[bufferSize];
     }
 
     /**
@@ -63,11 +205,55 @@ public class InputOutputStream implements AutoCloseable {
      */
     public InputStream getInputStream() {
         if(reader == null) {
-            reader = new IStream();
+            reader = new IStream(consumed);
         }
         return reader;
     }
 
+    /**
+     * Create an additional input stream and switch to the "broadcast" mode. Every input stream gets the same data
+     * independently and the writer waits only for the slowest of them. A newly created input stream gets the data
+     * written after its creation, so typically, all the input streams are created before writing anything. The
+     * 'reusable' mode is not supported in the "broadcast" mode and an input stream that is closed is just detached.
+     *
+     * @return A new input stream.
+     * @throws IllegalStateException If this is in the "lock-free" mode.
+     */
+    public InputStream newInputStream() {
+        if(lockFree) {
+            throw new IllegalStateException("Broadcast is not supported in lock-free mode");
+        }
+        lock.lock();
+        try {
+            if(readers == null) {
+                readers = new ArrayList<>();
+                IStream in = (IStream) getInputStream();
+                if(!rEOF) {
+                    readers.add(in);
+                }
+            }
+            IStream in = new IStream(generated);
+            readers.add(in);
+            consumed = slowest();
+            return in;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compute the position of the slowest reader in the "broadcast" mode. Must be invoked while holding the lock.
+     *
+     * @return Number of bytes consumed by the slowest reader.
+     */
+    private long slowest() {
+        long c = generated;
+        for(IStream in: readers) {
+            c = Math.min(c, in.consumed);
+        }
+        return c;
+    }
+
     /**
      * Get the output stream for writing to it.
      *
@@ -105,8 +291,16 @@ public class InputOutputStream implements AutoCloseable {
      */
     public void abort() {
         IO.close(reader, writer);
-        reusable = false;
-        rEOF = wEOF = true;
+        lock.lock();
+        try {
+            reusable = false;
+            rEOF = wEOF = true;
+            wakeUp();
+            release();
+        } finally {
+            lock.unlock();
+        }
+        report();
     }
 
     /**
@@ -115,7 +309,13 @@ public class InputOutputStream implements AutoCloseable {
      * @param e Exception to set.
      */
     public void setExternalException(Exception e) {
-        reader.external = e;
+        lock.lock();
+        try {
+            external = e;
+            wakeUp();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -129,52 +329,463 @@ public class InputOutputStream implements AutoCloseable {
         this.dataListener = dataListener;
     }
 
+    /**
+     * Get the statistics of the data flow so far.
+     *
+     * @return Statistics.
+     */
+    public PipeStatistics getStatistics() {
+        PipeStatistics s = new PipeStatistics();
+        lock.lock();
+        try {
+            s.capacity = capacity;
+            s.produced = producedBefore + generated;
+            s.consumed = consumedBefore + consumed;
+        } finally {
+            lock.unlock();
+        }
+        s.writerBlockedTime = writerBlocked;
+        s.readerBlockedTime = readerBlocked;
+        s.writerWakeUps = writerWakeUps;
+        s.readerWakeUps = readerWakeUps;
+        s.peakFill = peakFill;
+        return s;
+    }
+
+    /**
+     * Set a listener to receive the statistics (see {@link #getStatistics()}) when both the streams are closed, or
+     * when this is closed or aborted. By default, the statistics are recorded as a JFR event.
+     *
+     * @param statisticsListener Listener (<code>null</code> to stop reporting).
+     */
+    public void setStatisticsListener(Consumer<PipeStatistics> statisticsListener) {
+        this.statisticsListener = statisticsListener;
+    }
+
+    private void report() {
+        Consumer<PipeStatistics> listener;
+        lock.lock();
+        try {
+            if (reported || statisticsListener == null) {
+                return;
+            }
+            reported = true;
+            listener = statisticsListener;
+        } finally {
+            lock.unlock();
+        }
+        listener.accept(getStatistics());
+    }
+
+    private static void record(PipeStatistics statistics) {
+        PipeEvent event = new PipeEvent();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.capacity = statistics.capacity;
+        event.produced = statistics.produced;
+        event.consumed = statistics.consumed;
+        event.peakFill = statistics.peakFill;
+        event.writerBlocked = statistics.writerBlockedTime;
+        event.readerBlocked = statistics.readerBlockedTime;
+        event.writerWakeUps = statistics.writerWakeUps;
+        event.readerWakeUps = statistics.readerWakeUps;
+        event.commit();
+    }
+
+    @Name("com.storedobject.common.Pipe")
+    @Label("Pipe")
+    @Category("SO Common")
+    @Description("Data flow through an InputOutputStream")
+    private static class PipeEvent extends Event {
+
+        @Label("Capacity")
+        @DataAmount
+        int capacity;
+
+        @Label("Produced")
+        @DataAmount
+        long produced;
+
+        @Label("Consumed")
+        @DataAmount
+        long consumed;
+
+        @Label("Peak Fill")
+        @DataAmount
+        long peakFill;
+
+        @Label("Writer Blocked")
+        @Timespan
+        long writerBlocked;
+
+        @Label("Reader Blocked")
+        @Timespan
+        long readerBlocked;
+
+        @Label("Writer Wake-ups")
+        long writerWakeUps;
+
+        @Label("Reader Wake-ups")
+        long readerWakeUps;
+    }
+
+    /**
+     * Read everything available from the input side and write it to a channel until the output side is closed. The
+     * data is written to the channel straight from the buffer.
+     *
+     * @param channel Channel to write to.
+     * @return Number of bytes transferred.
+     * @throws IOException If any I/O error occurs.
+     */
+    public long transferTo(WritableByteChannel channel) throws IOException {
+        IStream in = (IStream) getInputStream();
+        long transferred = 0;
+        int len;
+        while ((len = in.awaitData()) > 0) {
+            len = Math.min(len, capacity - in.rPointer);
+            ByteBuffer b = buffer.slice(in.rPointer, len);
+            try {
+                while (b.hasRemaining()) {
+                    channel.write(b);
+                }
+            } catch (Throwable e) {
+                in.consumed(0); // Not copying anymore
+                throw e;
+            }
+            in.consumed(len);
+            transferred += len;
+        }
+        return transferred;
+    }
+
+    /**
+     * Read everything from a channel and write it to the output side. The data is read from the channel straight into
+     * the buffer. The output side is not closed.
+     *
+     * @param channel Channel to read from.
+     * @return Number of bytes transferred.
+     * @throws IOException If any I/O error occurs.
+     */
+    public long transferFrom(ReadableByteChannel channel) throws IOException {
+        OStream out = (OStream) getOutputStream();
+        long transferred = 0;
+        int len;
+        while (true) {
+            len = Math.min(out.awaitSpace(), capacity - wPointer);
+            try {
+                len = channel.read(buffer.slice(wPointer, len));
+            } catch (Throwable e) {
+                out.generated(0); // Not copying anymore
+                throw e;
+            }
+            out.generated(Math.max(len, 0));
+            if (len < 0) {
+                return transferred;
+            }
+            transferred += len;
+        }
+    }
+
+    /**
+     * Wake up both the reader and the writer so that they can re-check the state. Must be invoked while holding the
+     * lock.
+     */
+    private void wakeUp() {
+        dataAvailable.signalAll();
+        spaceAvailable.signalAll();
+        LockSupport.unpark(parkedReader);
+        LockSupport.unpark(parkedWriter);
+    }
+
+    /**
+     * Allocate an array for the buffer, from the {@link BufferPool#heap() heap pool} if pooled. (A pooled array may be
+     * larger than the size requested and only the requested size is used.)
+     *
+     * @param size Size of the array.
+     * @return Array.
+     */
+    private byte[] allocate(int size) {
+        return pooled ? BufferPool.heap().acquire(size) : new byte[size];
+    }
+
+    /**
+     * Resize the buffer in the "adaptive" mode, preserving the data that is not yet consumed. Every pointer remains
+     * at the same position relative to its counter. Must be invoked while holding the lock and while no one is copying
+     * to or from the buffer.
+     *
+     * @param size New size.
+     */
+    private void resize(int size) {
+        waits = 0;
+        grow = false;
+        if(size == capacity || buffer == null) {
+            return;
+        }
+        ByteBuffer b = ByteBuffer.wrap(allocate(size));
+        int from, to, n;
+        for(long i = consumed; i < generated; i += n) {
+            from = (int) (i % capacity);
+            to = (int) (i % size);
+            n = (int) Math.min(generated - i, Math.min(capacity - from, size - to));
+            b.put(to, buffer, from, n);
+        }
+        if(pooled) {
+            BufferPool.heap().release(buffer.array());
+        }
+        buffer = b;
+        capacity = size;
+        wPointer = (int) (generated % size);
+        if(reader != null) {
+            reader.rPointer = (int) (reader.consumed % size);
+        }
+        if(readers != null) {
+            for(IStream in: readers) {
+                in.rPointer = (int) (in.consumed % size);
+            }
+        }
+    }
+
+    /**
+     * Grow the buffer in the "adaptive" mode if the writer asked for it and if no one is copying to or from the buffer.
+     * Must be invoked while holding the lock.
+     */
+    private void adapt() {
+        if(grow && inFlight == 0 && !writing) {
+            resize((int) Math.min(maximum, 2L * capacity));
+        }
+    }
+
+    /**
+     * Release the buffer to the pool once both the streams are closed (only if no one is copying to or from it). Must
+     * be invoked while holding the lock.
+     */
+    private void release() {
+        if(pooled && buffer != null && rEOF && wEOF && inFlight == 0 && !writing) {
+            BufferPool.heap().release(buffer.array());
+            buffer = null;
+        }
+    }
+
     private class IStream extends InputStream {
 
-        private Exception external;
+        private int rPointer;
+        private volatile long consumed;
+        private boolean detached = false;
+
+        private IStream(long consumed) {
+            this.consumed = consumed;
+            rPointer = (int) (consumed % capacity);
+        }
 
         @Override
         public int read() throws IOException {
-            synchronized (buffer) {
-                while (generated == consumed) {
-                    if (external != null) {
-                        throw new IOException(external);
-                    }
-                    if (rEOF) {
-                        throw new IOException("Stream already closed");
+            if (awaitData() < 0) {
+                return -1;
+            }
+            int c = buffer.get(rPointer) & 0xFF;
+            consumed(1);
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (len == 0) {
+                return 0;
+            }
+            int available = awaitData();
+            if (available < 0) {
+                return -1;
+            }
+            // The writer will not touch the available region until it is consumed, so it can be copied without the lock
+            len = Math.min(len, available);
+            int n = Math.min(len, capacity - rPointer);
+            buffer.get(rPointer, b, off, n);
+            if (n < len) { // Wrapped around
+                buffer.get(0, b, off + n, len - n);
+            }
+            consumed(len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            int available = awaitData();
+            if (available < 0) {
+                return 0;
+            }
+            int len = (int) Math.min(n, available);
+            consumed(len);
+            return len;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            long transferred = 0;
+            byte[] b;
+            int len;
+            while ((len = awaitData()) > 0) {
+                len = Math.min(len, capacity - rPointer);
+                b = buffer.hasArray() ? buffer.array() : null; // The buffer may be resized in the "adaptive" mode
+                try {
+                    if (b == null) { // Direct buffer
+                        byte[] chunk = new byte[len];
+                        buffer.get(rPointer, chunk);
+                        out.write(chunk);
+                    } else {
+                        out.write(b, rPointer, len);
                     }
-                    if (wEOF || wWait) {
+                } catch (Throwable e) {
+                    consumed(0); // Not copying anymore
+                    throw e;
+                }
+                consumed(len);
+                transferred += len;
+            }
+            return transferred;
+        }
+
+        /**
+         * Wait until some data is available.
+         *
+         * @return Number of bytes available or -1 if no more data will be available.
+         */
+        private int awaitData() throws IOException {
+            if (lockFree) {
+                return awaitDataLockFree();
+            }
+            lock.lock();
+            try {
+                while (generated == consumed) {
+                    if (checkEOF()) {
                         return -1;
                     }
-                    try {
-                        buffer.wait(5000); // Wait upto 5 seconds or until notified
-                    } catch (InterruptedException ignored) {
+                    long time = System.nanoTime();
+                    if (adaptive && capacity > minimum) {
+                        awaitIdle();
+                    } else {
+                        dataAvailable.awaitUninterruptibly();
                     }
+                    readerBlocked += System.nanoTime() - time;
+                    ++readerWakeUps;
+                }
+                if (buffer == null) { // Released
+                    throw new IOException("Stream already closed");
+                }
+                if (adaptive) {
+                    ++inFlight;
+                }
+                return (int) (generated - consumed);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait for data in the "adaptive" mode. If nothing is written for a while, the buffer shrinks back to its
+         * minimum size.
+         */
+        private void awaitIdle() {
+            try {
+                if (!dataAvailable.await(IDLE_TIME, TimeUnit.MILLISECONDS) && generated == consumed && inFlight == 0
+                        && !writing) {
+                    resize(minimum);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dataAvailable.awaitUninterruptibly();
+            }
+        }
+
+        private int awaitDataLockFree() throws IOException {
+            int n;
+            while (true) {
+                n = (int) ((long) GENERATED.getAcquire(InputOutputStream.this) - consumed);
+                if (n > 0) {
+                    return n;
+                }
+                if (checkEOF()) { // Data may have been written just before closing
+                    return generated == consumed ? -1 : (int) (generated - consumed);
                 }
-                int c = buffer[rPointer] & 0xFF;
-                ++consumed;
+                parkedReader = Thread.currentThread();
+                if (generated == consumed && !wEOF && !wWait && !rEOF && external == null) {
+                    long time = System.nanoTime();
+                    LockSupport.park(this);
+                    readerBlocked += System.nanoTime() - time;
+                    ++readerWakeUps;
+                }
+                parkedReader = null;
+            }
+        }
 
-                if (++rPointer == buffer.length) {
-                    rPointer = 0;
+        private boolean checkEOF() throws IOException {
+            if (external != null) {
+                throw new IOException(external);
+            }
+            if (rEOF || detached) {
+                throw new IOException("Stream already closed");
+            }
+            return wEOF || wWait;
+        }
+
+        /**
+         * Mark the given number of bytes as consumed and notify the writer.
+         */
+        private void consumed(int len) {
+            rPointer += len;
+            if (rPointer >= capacity) {
+                rPointer -= capacity;
+            }
+            if (lockFree) {
+                consumed += len;
+                CONSUMED.setRelease(InputOutputStream.this, consumed);
+                VarHandle.fullFence(); // The update must be visible before checking for a parked writer
+                LockSupport.unpark(parkedWriter);
+                return;
+            }
+            lock.lock();
+            try {
+                consumed += len;
+                InputOutputStream.this.consumed = readers == null ? consumed : slowest();
+                if (adaptive) {
+                    --inFlight;
+                    adapt();
                 }
-                buffer.notify(); // Notify the writer
-                return c;
+                spaceAvailable.signal(); // Notify the writer
+            } finally {
+                lock.unlock();
             }
         }
 
         public int available() {
-            return generated - consumed;
+            return (int) (generated - consumed);
         }
 
         @Override
         public void close() {
+            lock.lock();
             try {
+                if (readers != null) { // Broadcast mode
+                    if (!detached) {
+                        detached = true;
+                        readers.remove(this);
+                        if (readers.isEmpty()) {
+                            rEOF = true;
+                        } else {
+                            InputOutputStream.this.consumed = slowest();
+                        }
+                    }
+                    return;
+                }
                 if (rEOF) {
                     return;
                 }
                 if (wWait && reusable) {
-                    rPointer = wPointer = generated = consumed = 0;
-                    rWait = wWait = false;
+                    rewind();
                 } else {
                     if (reusable) {
                         rWait = true;
@@ -183,56 +794,173 @@ public class InputOutputStream implements AutoCloseable {
                     }
                 }
             } finally {
-                synchronized (buffer) {
-                    buffer.notify();
+                wakeUp();
+                release();
+                lock.unlock();
+                if (rEOF && wEOF) {
+                    report();
                 }
             }
         }
     }
 
+    /**
+     * Reset everything so that the streams can be re-used. Must be invoked while holding the lock.
+     */
+    private void rewind() {
+        producedBefore += generated;
+        consumedBefore += consumed;
+        wPointer = 0;
+        generated = consumed = 0;
+        reader.rPointer = 0;
+        reader.consumed = 0;
+        rWait = wWait = false;
+    }
+
+    private void peak() {
+        long fill = generated - consumed;
+        if (fill > peakFill) {
+            peakFill = fill;
+        }
+    }
+
     private class OStream extends OutputStream {
 
         @Override
         public void write(int b) throws IOException {
-            synchronized (buffer) {
-                while ((generated - consumed) >= buffer.length) {
-                    if (wEOF) {
-                        throw new IOException("Stream already closed");
-                    }
-                    if (rEOF) {
-                        throw new IOException("No consumer");
-                    }
-                    if(dataListener != null) { // Someone wants to know about the data availability. We are full!
-                        dataListener.run();
-                    }
-                    try {
-                        buffer.wait(5000); // Wait upto 5 seconds or until notified
-                    } catch (InterruptedException ignored) {
-                    }
+            awaitSpace();
+            buffer.put(wPointer, (byte) (0xFF & b));
+            generated(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            int n, m;
+            while (len > 0) {
+                // The reader will not touch the free region until it is generated, so it can be filled without the lock
+                n = Math.min(len, awaitSpace());
+                m = Math.min(n, capacity - wPointer);
+                buffer.put(wPointer, b, off, m);
+                if (m < n) { // Wrapped around
+                    buffer.put(0, b, off + m, n - m);
                 }
+                generated(n);
+                off += n;
+                len -= n;
+            }
+        }
 
-                buffer[wPointer] = (byte) (0xFF & b);
-                ++generated;
+        /**
+         * Wait until some space is available.
+         *
+         * @return Number of bytes that can be written.
+         */
+        private int awaitSpace() throws IOException {
+            if (lockFree) {
+                return awaitSpaceLockFree();
+            }
+            lock.lock();
+            try {
+                while ((generated - consumed) >= capacity) {
+                    checkEOF();
+                    if (adaptive && capacity < maximum && ++waits >= GROW_AFTER) {
+                        grow = true;
+                        adapt();
+                        if (!grow) { // Grown, otherwise, the reader will do it when it is done with copying
+                            continue;
+                        }
+                    }
+                    long time = System.nanoTime();
+                    spaceAvailable.awaitUninterruptibly();
+                    writerBlocked += System.nanoTime() - time;
+                    ++writerWakeUps;
+                }
+                if (buffer == null) { // Released
+                    throw new IOException("Stream already closed");
+                }
+                if (adaptive) {
+                    writing = true;
+                }
+                return capacity - (int) (generated - consumed);
+            } finally {
+                lock.unlock();
+            }
+        }
 
-                if (++wPointer == buffer.length) {
-                    wPointer = 0;
+        private int awaitSpaceLockFree() throws IOException {
+            int n;
+            while (true) {
+                n = capacity - (int) (generated - (long) CONSUMED.getAcquire(InputOutputStream.this));
+                if (n > 0) {
+                    return n;
                 }
-                buffer.notify(); // Notify the reader
-                if (dataListener != null) { // Someone wants to know about the data availability
-                    dataListener.run();
+                checkEOF();
+                parkedWriter = Thread.currentThread();
+                if ((generated - consumed) >= capacity && !wEOF && !rEOF) {
+                    long time = System.nanoTime();
+                    LockSupport.park(this);
+                    writerBlocked += System.nanoTime() - time;
+                    ++writerWakeUps;
                 }
+                parkedWriter = null;
+            }
+        }
+
+        private void checkEOF() throws IOException {
+            if (wEOF) {
+                throw new IOException("Stream already closed");
+            }
+            if (rEOF) {
+                throw new IOException("No consumer");
+            }
+            if(dataListener != null) { // Someone wants to know about the data availability. We are full!
+                dataListener.run();
+            }
+        }
+
+        /**
+         * Mark the given number of bytes as generated and notify the reader.
+         */
+        private void generated(int len) {
+            wPointer += len;
+            if (wPointer >= capacity) {
+                wPointer -= capacity;
+            }
+            if (lockFree) {
+                GENERATED.setRelease(InputOutputStream.this, generated + len);
+                VarHandle.fullFence(); // The update must be visible before checking for a parked reader
+                LockSupport.unpark(parkedReader);
+                peak();
+            } else {
+                lock.lock();
+                try {
+                    generated += len;
+                    writing = false;
+                    peak();
+                    if (readers == null) {
+                        dataAvailable.signal(); // Notify the reader
+                    } else {
+                        dataAvailable.signalAll(); // Notify all the readers
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (len > 0 && dataListener != null) { // Someone wants to know about the data availability
+                dataListener.run();
             }
         }
 
         @Override
         public void close() {
+            lock.lock();
             try {
                 if (wEOF) {
                     return;
                 }
                 if (rWait && reusable) {
-                    rPointer = wPointer = generated = consumed = 0;
-                    rWait = wWait = false;
+                    rewind();
                 } else {
                     if (reusable) {
                         wWait = true;
@@ -241,8 +969,11 @@ public class InputOutputStream implements AutoCloseable {
                     }
                 }
             } finally {
-                synchronized (buffer) {
-                    buffer.notify();
+                wakeUp();
+                release();
+                lock.unlock();
+                if (rEOF && wEOF) {
+                    report();
                 }
             }
         }
@@ -250,8 +981,12 @@ public class InputOutputStream implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
+        if(readers != null) {
+            IO.close(readers.toArray(new IStream[0]));
+        }
         IO.close(reader, writer);
+        report();
         reader = null;
         writer = null;
     }
-}
\ No newline at end of file
+}
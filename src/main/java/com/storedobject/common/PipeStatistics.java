@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Syam Pillai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.storedobject.common;
+
+/**
+ * Statistics of the data flowing through an {@link InputOutputStream}. It can be used for finding out whether the
+ * writer (producer) or the reader (consumer) is the bottleneck.
+ *
+ * @author Syam
+ */
+public class PipeStatistics {
+
+    int capacity;
+    long produced, consumed, writerBlockedTime, readerBlockedTime, peakFill, writerWakeUps, readerWakeUps;
+
+    PipeStatistics() {
+    }
+
+    /**
+     * Get the size of the buffer.
+     *
+     * @return Size in bytes.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the number of bytes written (produced) so far.
+     *
+     * @return Number of bytes.
+     */
+    public long getProduced() {
+        return produced;
+    }
+
+    /**
+     * Get the number of bytes read (consumed) so far. In the "broadcast" mode, this is that of the slowest reader.
+     *
+     * @return Number of bytes.
+     */
+    public long getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * Get the time spent by the writer waiting for space because the buffer was full.
+     *
+     * @return Time in nanoseconds.
+     */
+    public long getWriterBlockedTime() {
+        return writerBlockedTime;
+    }
+
+    /**
+     * Get the time spent by the reader waiting for data because the buffer was empty. In the "broadcast" mode, this
+     * is the total of all the readers.
+     *
+     * @return Time in nanoseconds.
+     */
+    public long getReaderBlockedTime() {
+        return readerBlockedTime;
+    }
+
+    /**
+     * Get the maximum number of bytes that were waiting in the buffer to be read.
+     *
+     * @return Number of bytes.
+     */
+    public long getPeakFill() {
+        return peakFill;
+    }
+
+    /**
+     * Get the number of times the writer was woken up after waiting for space.
+     *
+     * @return Number of wake-ups.
+     */
+    public long getWriterWakeUps() {
+        return writerWakeUps;
+    }
+
+    /**
+     * Get the number of times the reader was woken up after waiting for data.
+     *
+     * @return Number of wake-ups.
+     */
+    public long getReaderWakeUps() {
+        return readerWakeUps;
+    }
+
+    @Override
+    public String toString() {
+        return "Capacity: " + capacity + " bytes, Produced: " + produced + " bytes, Consumed: " + consumed
+                + " bytes, Peak fill: " + peakFill + " bytes, Writer blocked: " + (writerBlockedTime / 1000000)
+                + " ms (" + writerWakeUps + " wake-ups), Reader blocked: " + (readerBlockedTime / 1000000) + " ms ("
+                + readerWakeUps + " wake-ups)";
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Syam Pillai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.storedobject.common;
+
+/**
+ * Usage statistics of a {@link BufferPool}.
+ *
+ * @author Syam
+ */
+public class PoolStatistics {
+
+    long acquired, released, allocated, localHits, sharedHits, discarded, unpooled, sharedBytes, localBytes;
+
+    PoolStatistics() {
+    }
+
+    /**
+     * Get the number of buffers acquired so far.
+     *
+     * @return Number of buffers.
+     */
+    public long getAcquired() {
+        return acquired;
+    }
+
+    /**
+     * Get the number of buffers released so far.
+     *
+     * @return Number of buffers.
+     */
+    public long getReleased() {
+        return released;
+    }
+
+    /**
+     * Get the number of buffers that are acquired but not yet released. If this keeps increasing, buffers are being
+     * leaked (they will be garbage collected, but the pool is not effective).
+     *
+     * @return Number of buffers.
+     */
+    public long getOutstanding() {
+        return acquired - released;
+    }
+
+    /**
+     * Get the number of new buffers allocated because no buffer was available in the pool.
+     *
+     * @return Number of buffers.
+     */
+    public long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * Get the number of buffers served from the thread-local caches.
+     *
+     * @return Number of buffers.
+     */
+    public long getLocalHits() {
+        return localHits;
+    }
+
+    /**
+     * Get the number of buffers served from the shared free-lists.
+     *
+     * @return Number of buffers.
+     */
+    public long getSharedHits() {
+        return sharedHits;
+    }
+
+    /**
+     * Get the number of buffers that were dropped because the pool was already full or because they were in the
+     * thread-local cache of an idle thread.
+     *
+     * @return Number of buffers.
+     */
+    public long getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * Get the number of buffers acquired that were too large to be pooled.
+     *
+     * @return Number of buffers.
+     */
+    public long getUnpooled() {
+        return unpooled;
+    }
+
+    /**
+     * Get the total size of the buffers waiting in the shared free-lists.
+     *
+     * @return Size in bytes.
+     */
+    public long getSharedBytes() {
+        return sharedBytes;
+    }
+
+    /**
+     * Get the total size of the buffers held in the thread-local caches.
+     *
+     * @return Size in bytes.
+     */
+    public long getLocalBytes() {
+        return localBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Acquired: " + acquired + ", Released: " + released + ", Outstanding: " + getOutstanding()
+                + ", Allocated: " + allocated + ", Local hits: " + localHits + ", Shared hits: " + sharedHits
+                + ", Discarded: " + discarded + ", Unpooled: " + unpooled + ", Shared: " + sharedBytes + " bytes"
+                + ", Local: " + localBytes + " bytes";
+    }
+}
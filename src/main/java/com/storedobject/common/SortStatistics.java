@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Syam Pillai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.storedobject.common;
+
+/**
+ * Statistics collected while sorting a {@link FileBuffer} using its external (merge) sort.
+ *
+ * @author Syam
+ */
+public class SortStatistics {
+
+    int runs;
+    long spilledBytes, sortTime, mergeTime;
+    int mergePasses;
+
+    SortStatistics() {
+    }
+
+    /**
+     * Get the number of sorted runs created. If everything could be sorted in memory, this will be 1.
+     *
+     * @return Number of runs.
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    /**
+     * Get the number of bytes spilled to the temporary run files (including intermediate merge passes, if any).
+     *
+     * @return Bytes spilled.
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Get the number of merge passes carried out. This will be zero if no merging was required.
+     *
+     * @return Number of merge passes.
+     */
+    public int getMergePasses() {
+        return mergePasses;
+    }
+
+    /**
+     * Get the time spent on creating the sorted runs.
+     *
+     * @return Time in milliseconds.
+     */
+    public long getSortTime() {
+        return sortTime;
+    }
+
+    /**
+     * Get the time spent on merging the runs.
+     *
+     * @return Time in milliseconds.
+     */
+    public long getMergeTime() {
+        return mergeTime;
+    }
+
+    @Override
+    public String toString() {
+        return "Runs: " + runs + ", Spilled: " + spilledBytes + " bytes, Merge passes: " + mergePasses
+                + ", Sort time: " + sortTime + " ms, Merge time: " + mergeTime + " ms";
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2018 Syam Pillai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.storedobject.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+/**
+ * A pipeline of translation stages that can be applied to a stream of bytes. Unlike the translated streams
+ * ({@link TranslatedInputStream}, {@link TranslatedOutputStream} etc.), the stages pass chunks of data to each other
+ * in the calling thread. A stage runs in another thread only if an asynchronous boundary is placed before it
+ * (see {@link #async()}), in which case, the data crosses the boundary via an {@link InputOutputStream}.
+ * <p>Example:</p>
+ * <pre>
+ * InputStream in = new StreamPipeline()
+ *         .then(StreamPipeline.lines(StandardCharsets.UTF_8, line -&gt; StringUtility.fill(line, filler)))
+ *         .then(compressor)
+ *         .wrap(source);
+ * </pre>
+ * <p>A stage may hold state, so an instance of the pipeline should be used for wrapping one stream only.</p>
+ *
+ * @author Syam
+ */
+public class StreamPipeline {
+
+    private static final int CHUNK_SIZE = 8192;
+    private final List<List<Stage>> segments = new ArrayList<>();
+
+    /**
+     * Constructor.
+     */
+    public StreamPipeline() {
+        segments.add(new ArrayList<>());
+    }
+
+    /**
+     * A stage of the pipeline. A stage receives chunks of data and writes its output to the next stage.
+     *
+     * @author Syam
+     */
+    @FunctionalInterface
+    public interface Stage {
+
+        /**
+         * Process a chunk of data. The chunk is valid only during the call.
+         *
+         * @param data Data.
+         * @param offset Offset of the chunk.
+         * @param length Length of the chunk.
+         * @param out Next stage to which the output should be written.
+         * @throws IOException If any I/O error occurs.
+         */
+        void process(byte[] data, int offset, int length, OutputStream out) throws IOException;
+
+        /**
+         * Invoked when there is no more data so that any pending output can be written.
+         *
+         * @param out Next stage to which the output should be written.
+         * @throws IOException If any I/O error occurs.
+         */
+        default void finish(OutputStream out) throws IOException {
+        }
+    }
+
+    /**
+     * Add a stage.
+     *
+     * @param stage Stage to add.
+     * @return This pipeline.
+     */
+    public StreamPipeline then(Stage stage) {
+        segments.getLast().add(Objects.requireNonNull(stage));
+        return this;
+    }
+
+    /**
+     * Place an asynchronous boundary here. The stages added after this will run in another thread.
+     *
+     * @return This pipeline.
+     */
+    public StreamPipeline async() {
+        if(!segments.getLast().isEmpty()) {
+            segments.add(new ArrayList<>());
+        }
+        return this;
+    }
+
+    /**
+     * Wrap an output stream so that everything written to the returned stream passes through the stages of this
+     * pipeline before reaching the given stream. Closing the returned stream finishes all the stages (waiting for the
+     * asynchronous ones, if any) and closes the given stream.
+     *
+     * @param out Output stream to write the final output to.
+     * @return Output stream to write to.
+     */
+    public OutputStream wrap(OutputStream out) {
+        for(int i = segments.size() - 1; i >= 0; i--) {
+            out = chain(segments.get(i), out);
+            if(i > 0) {
+                out = new AsyncOutputStream(out);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Wrap an input stream so that everything read from the returned stream is the output of the stages of this
+     * pipeline applied to the data of the given stream. The stages after the last asynchronous boundary run in the
+     * reading thread. Closing the returned stream closes the given stream.
+     *
+     * @param in Input stream to read the original data from.
+     * @return Input stream to read from.
+     */
+    public InputStream wrap(InputStream in) {
+        for(int i = 0; i < segments.size() - 1; i++) {
+            InputOutputStream inout = new InputOutputStream();
+            InputStream source = in;
+            OutputStream out = chain(segments.get(i), inout.getOutputStream());
+            Executor.execute(() -> {
+                try {
+                    source.transferTo(out);
+                    out.close();
+                } catch(Exception e) {
+                    inout.setExternalException(e);
+                } finally {
+                    IO.close(source, out);
+                }
+            });
+            in = inout.getInputStream();
+        }
+        return new PullInputStream(in, segments.getLast());
+    }
+
+    /**
+     * Create a stage that translates the data line by line. The data should be in a charset that is compatible with
+     * ASCII (such as UTF-8 or ISO-8859-1) and lines are terminated by "\n" or "\r\n". Translated lines are
+     * terminated by the system line separator.
+     *
+     * @param charset Charset of the data.
+     * @param translator Function to translate a line (without the line terminator).
+     * @return Stage.
+     */
+    public static Stage lines(Charset charset, UnaryOperator<String> translator) {
+        byte[] separator = System.lineSeparator().getBytes(charset);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        return new Stage() {
+
+            @Override
+            public void process(byte[] data, int offset, int length, OutputStream out) throws IOException {
+                int end = offset + length, start = offset;
+                for(int i = offset; i < end; i++) {
+                    if(data[i] == '\n') {
+                        line.write(data, start, i - start);
+                        emit(out);
+                        start = i + 1;
+                    }
+                }
+                line.write(data, start, end - start);
+            }
+
+            @Override
+            public void finish(OutputStream out) throws IOException {
+                if(line.size() > 0) {
+                    emit(out);
+                }
+            }
+
+            private void emit(OutputStream out) throws IOException {
+                String s = line.toString(charset);
+                line.reset();
+                if(s.endsWith("\r")) {
+                    s = s.substring(0, s.length() - 1);
+                }
+                out.write(translator.apply(s).getBytes(charset));
+                out.write(separator);
+            }
+        };
+    }
+
+    private static OutputStream chain(List<Stage> stages, OutputStream out) {
+        for(int i = stages.size() - 1; i >= 0; i--) {
+            out = new StageOutputStream(stages.get(i), out);
+        }
+        return out;
+    }
+
+    /**
+     * Output stream that passes the data to a stage.
+     */
+    private static class StageOutputStream extends OutputStream {
+
+        private final Stage stage;
+        private final OutputStream out;
+        private boolean closed = false;
+
+        private StageOutputStream(Stage stage, OutputStream out) {
+            this.stage = stage;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if(closed) {
+                throw new IOException("Stream already closed");
+            }
+            if(len > 0) {
+                stage.process(b, off, len, out);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            try {
+                stage.finish(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Output stream that hands over the data to another thread.
+     */
+    private static class AsyncOutputStream extends OutputStream {
+
+        private final InputOutputStream inout = new InputOutputStream();
+        private final OutputStream buffer = inout.getOutputStream();
+        private final Future<?> task;
+        private volatile Exception error;
+
+        private AsyncOutputStream(OutputStream out) {
+            InputStream in = inout.getInputStream();
+            task = Executor.execute(() -> {
+                try {
+                    in.transferTo(out);
+                    out.close();
+                } catch(Exception e) {
+                    error = e;
+                    inout.abort();
+                } finally {
+                    IO.close(in, out);
+                }
+            });
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                buffer.write(b);
+            } catch(IOException e) {
+                throw failure(e);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                buffer.write(b, off, len);
+            } catch(IOException e) {
+                throw failure(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            buffer.close();
+            try {
+                task.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch(ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            if(error != null) {
+                throw failure(null);
+            }
+        }
+
+        private IOException failure(IOException e) {
+            Exception error = this.error;
+            if(error == null) {
+                return e;
+            }
+            return new IOException(error.getMessage(), error); // A new instance, it may be thrown more than once
+        }
+    }
+
+    /**
+     * Input stream that pulls the data through the stages in the reading thread.
+     */
+    private static class PullInputStream extends InputStream {
+
+        private final InputStream in;
+        private final OutputStream stages;
+        private final Chunks chunks = new Chunks();
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private boolean eof = false;
+
+        private PullInputStream(InputStream in, List<Stage> stages) {
+            this.in = in;
+            this.stages = chain(stages, chunks);
+        }
+
+        private boolean fill() throws IOException {
+            while(chunks.available() == 0) {
+                if(eof) {
+                    return false;
+                }
+                int n = in.read(chunk);
+                if(n < 0) {
+                    eof = true;
+                    stages.close();
+                } else {
+                    stages.write(chunk, 0, n);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? chunks.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if(len == 0) {
+                return 0;
+            }
+            return fill() ? chunks.read(b, off, len) : -1;
+        }
+
+        @Override
+        public int available() {
+            return chunks.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Collects the output of the last stage so that it can be read.
+     */
+    private static class Chunks extends OutputStream {
+
+        private byte[] data = new byte[CHUNK_SIZE];
+        private int position = 0, limit = 0;
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            data[limit++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, data, limit, len);
+            limit += len;
+        }
+
+        private void ensure(int len) {
+            if(limit + len <= data.length) {
+                return;
+            }
+            int available = limit - position;
+            if(available + len > data.length) {
+                byte[] d = new byte[Math.max(data.length << 1, available + len)];
+                System.arraycopy(data, position, d, 0, available);
+                data = d;
+            } else {
+                System.arraycopy(data, position, data, 0, available);
+            }
+            position = 0;
+            limit = available;
+        }
+
+        private int available() {
+            return limit - position;
+        }
+
+        private int read() {
+            return data[position++] & 0xFF;
+        }
+
+        private int read(byte[] b, int off, int len) {
+            len = Math.min(len, limit - position);
+            System.arraycopy(data, position, b, off, len);
+            position += len;
+            return len;
+        }
+    }
+}
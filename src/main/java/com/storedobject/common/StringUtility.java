@@ -2295,8 +2295,11 @@ public class StringUtility {
         return m == null ? ("[NULL value] of " + message.getClass()) : m;
     }
 
+    private static final int MAX_HINT = 64 * 1024 * 1024; // Larger size hints are not trusted
+
     /**
-     * Converts the content of the given InputStream into a String.
+     * Converts the content of the given InputStream (UTF-8 encoded) into a String. The stream is read fully (in bulk,
+     * in the calling thread) and closed. The content is not modified in any way (line endings are kept as such).
      *
      * @param stream the InputStream to be converted; may be null.
      * @return a String representation of the content of the InputStream,
@@ -2307,11 +2310,48 @@ public class StringUtility {
         if(stream == null) {
             return null;
         }
-        return toString(IO.getReader(stream));
+        return toString(stream, stream.available());
     }
 
     /**
-     * Converts the content of a {@code Reader} into a {@code String}.
+     * Converts the content of the given InputStream (UTF-8 encoded) into a String. The stream is read fully (in bulk,
+     * in the calling thread) and closed. The content is not modified in any way (line endings are kept as such).
+     *
+     * @param stream the InputStream to be converted; may be null.
+     * @param sizeHint the expected number of bytes (for example, from the "Content-Length" header of an HTTP
+     *                 response) so that the bytes can be read into an array of the right size; zero or negative if
+     *                 not known. It is just a hint and the actual content could be shorter or longer.
+     * @return a String representation of the content of the InputStream,
+     *         or null if the provided InputStream is null.
+     * @throws Exception if an error occurs while reading the InputStream.
+     */
+    public static String toString(InputStream stream, long sizeHint) throws Exception {
+        if(stream == null) {
+            return null;
+        }
+        try(stream) {
+            if(sizeHint <= 0 || sizeHint > MAX_HINT) {
+                return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            byte[] data = new byte[(int) sizeHint];
+            int n = 0, r;
+            while(n < data.length && (r = stream.read(data, n, data.length - n)) > 0) {
+                n += r;
+            }
+            if(n < data.length || (r = stream.read()) == -1) {
+                return new String(data, 0, n, StandardCharsets.UTF_8);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(n << 1); // The hint was wrong
+            out.write(data);
+            out.write(r);
+            stream.transferTo(out);
+            return out.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Converts the content of a {@code Reader} into a {@code String}. The reader is read fully (in bulk, in the
+     * calling thread) and closed. The content is not modified in any way (line endings are kept as such).
      *
      * @param reader the {@code Reader} containing the input to be converted;
      *               if {@code null}, the method will return {@code null}.
@@ -2320,16 +2360,33 @@ public class StringUtility {
      * @throws Exception if there is an error while reading from the {@code Reader}.
      */
     public static String toString(Reader reader) throws Exception {
+        return toString(reader, 0);
+    }
+
+    /**
+     * Converts the content of a {@code Reader} into a {@code String}. The reader is read fully (in bulk, in the
+     * calling thread) and closed. The content is not modified in any way (line endings are kept as such).
+     *
+     * @param reader the {@code Reader} containing the input to be converted;
+     *               if {@code null}, the method will return {@code null}.
+     * @param sizeHint the expected number of characters; zero or negative if not known.
+     * @return a {@code String} representation of the content read from the provided {@code Reader},
+     *         or {@code null} if the input {@code Reader} is {@code null}.
+     * @throws Exception if there is an error while reading from the {@code Reader}.
+     */
+    public static String toString(Reader reader, int sizeHint) throws Exception {
         if(reader == null) {
             return null;
         }
-        StringCollector sc = new StringCollector(reader);
-        String s = sc.getString();
-        Exception e = sc.getException();
-        if(e != null) {
-            throw e;
+        try(reader) {
+            StringBuilder s = new StringBuilder(sizeHint <= 0 || sizeHint > MAX_HINT ? 1024 : sizeHint);
+            char[] buffer = new char[8192];
+            int n;
+            while((n = reader.read(buffer)) != -1) {
+                s.append(buffer, 0, n);
+            }
+            return s.toString();
         }
-        return s;
     }
 
     private static class CSVField {
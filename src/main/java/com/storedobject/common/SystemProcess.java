@@ -17,8 +17,18 @@
 package com.storedobject.common;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * The SystemProcess class facilitates the execution of system-level commands within
@@ -32,15 +42,26 @@ import java.util.List;
  * Users can retrieve the output and errors generated by the process, as well as the process
  * exit value, to determine the outcome of the command execution.
  *
+ * By default, the output and the errors are captured as strings. For processes that produce a lot of output, the
+ * captured size can be limited (see {@link #setMaxCapture(int)}), or the output/errors can be streamed elsewhere
+ * instead: to a file, to a {@link FileBuffer}, to an {@link OutputStream} (chunk by chunk, as and when produced)
+ * or to a listener (line by line, as and when produced). A timeout may be set so that the process (along with all
+ * its descendant processes) is killed if it runs for too long.
+ *
  * @author Syam
  */
 public class SystemProcess {
 
+    private static final long DRAIN_TIME = 1000; // Milliseconds to wait for the streams after a timeout
     private int exitValue;
     private List<String> command;
     private String output, error;
     private String[] environment;
     private File directory;
+    private final Target outputTarget = new Target(), errorTarget = new Target();
+    private int maxCapture = 0;
+    private long timeout = 0;
+    private boolean timedOut;
 
     /**
      * Constructs a new SystemProcess object with an empty command.
@@ -110,21 +131,30 @@ public class SystemProcess {
     /**
      * Executes a system-level command with the pre-configured options including the command,
      * environment variables, and working directory. This method captures the standard output
-     * and error streams of the executed process and determines its exit value.
+     * and error streams of the executed process (or streams them to where they are directed) and determines its exit
+     * value.
+     *
+     * The standard output and error streams are read concurrently in virtual threads while the process is running.
+     * When captured as strings, the lines are joined with a newline character. The exit value of the process is
+     * retrieved and stored for later usage.
      *
-     * Upon execution, the standard output and error streams are handled asynchronously
-     * by the {@code StringCollector} utility, which gathers the output and errors
-     * into corresponding strings. The exit value of the process is retrieved and stored
-     * for later usage.
+     * If a timeout is set and the process does not finish in time, the process and all its descendants are killed
+     * and a {@link TimeoutException} is thrown (whatever captured till then is still available). The output and error
+     * streams are closed at that point even if an orphaned descendant is still holding them open.
      *
      * If an exception is encountered while reading from the output or error streams,
      * the same is thrown from this method.
      *
+     * If the calling thread is interrupted while waiting, the process and all its descendants are killed, reading from
+     * its output and error streams is stopped and the {@link InterruptedException} is thrown.
+     *
      * @throws Exception if an exception occurs during the execution of the process or
      *                   while reading the output/error streams
      */
     public void execute() throws Exception {
         exitValue = Integer.MIN_VALUE;
+        timedOut = false;
+        output = error = null;
         ProcessBuilder pb = new ProcessBuilder(command);
         if (environment != null) {
             pb.environment().clear();
@@ -138,21 +168,201 @@ public class SystemProcess {
         if (directory != null) {
             pb.directory(directory);
         }
+        if (outputTarget.file != null) {
+            pb.redirectOutput(outputTarget.file);
+        }
+        if (errorTarget.file != null) {
+            pb.redirectError(errorTarget.file);
+        }
         Process p = pb.start();
-        StringCollector sco = new StringCollector(p.getInputStream());
-        StringCollector sce = new StringCollector(p.getErrorStream());
-        p.waitFor();
-        sco.join();
-        sce.join();
-        exitValue = p.exitValue();
-        if (sco.getException() != null) {
-            throw sco.getException();
+        Capture out = new Capture(maxCapture), err = new Capture(maxCapture);
+        Future<Void> fo = outputTarget.pump(p.getInputStream(), out), fe = errorTarget.pump(p.getErrorStream(), err);
+        Exception eo, ee;
+        try {
+            if (timeout > 0 && !p.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+                timedOut = true;
+                kill(p);
+            }
+            p.waitFor();
+            exitValue = p.exitValue();
+            if (timedOut) { // An orphaned descendant may still be holding the streams open
+                IO.close(p.getInputStream(), p.getErrorStream());
+                long deadline = System.currentTimeMillis() + DRAIN_TIME;
+                await(fo, deadline);
+                await(fe, deadline);
+                eo = ee = null;
+            } else {
+                eo = await(fo);
+                ee = await(fe);
+            }
+        } catch (InterruptedException e) { // Stop waiting and leave nothing running behind
+            kill(p);
+            fo.cancel(true);
+            fe.cancel(true);
+            IO.close(p.getInputStream(), p.getErrorStream());
+            throw e;
+        }
+        output = outputTarget.isCaptured() ? out.toString() : null;
+        error = errorTarget.isCaptured() ? err.toString() : null;
+        if (eo != null) {
+            throw eo;
         }
-        if (sce.getException() != null) {
-            throw sce.getException();
+        if (ee != null) {
+            throw ee;
+        }
+        if (timedOut) {
+            throw new TimeoutException("Process timed out after " + timeout + " ms: " + command);
+        }
+    }
+
+    private static Exception await(Future<Void> future) throws InterruptedException {
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof Exception ex ? ex : e;
+        }
+    }
+
+    private static void await(Future<Void> future, long deadline) throws InterruptedException {
+        try {
+            future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ignored) { // Streams are closed forcibly
+        } catch (TimeoutException e) {
+            future.cancel(true);
         }
-        output = sco.getString();
-        error = sce.getString();
+    }
+
+    private static void kill(Process p) {
+        p.descendants().forEach(ProcessHandle::destroyForcibly);
+        p.destroyForcibly();
+    }
+
+    /**
+     * Direct the standard output of the process to a file instead of capturing it. (The file is overwritten).
+     *
+     * @param file File to write the output to (<code>null</code> to capture the output as a string).
+     */
+    public void setOutputFile(File file) {
+        outputTarget.set(file, null, null, null);
+    }
+
+    /**
+     * Direct the standard error of the process to a file instead of capturing it. (The file is overwritten).
+     *
+     * @param file File to write the errors to (<code>null</code> to capture the errors as a string).
+     */
+    public void setErrorFile(File file) {
+        errorTarget.set(file, null, null, null);
+    }
+
+    /**
+     * Direct the standard output of the process to a {@link FileBuffer} instead of capturing it. Each line (without
+     * the line terminator) is written as an entry of the buffer. The buffer is ended (see {@link FileBuffer#end()})
+     * when the process closes its output.
+     *
+     * @param buffer Buffer to write the output lines to (<code>null</code> to capture the output as a string).
+     */
+    public void setOutputBuffer(FileBuffer buffer) {
+        outputTarget.set(null, buffer, null, null);
+    }
+
+    /**
+     * Direct the standard error of the process to a {@link FileBuffer} instead of capturing it. Each line (without
+     * the line terminator) is written as an entry of the buffer. The buffer is ended (see {@link FileBuffer#end()})
+     * when the process closes its error stream.
+     *
+     * @param buffer Buffer to write the error lines to (<code>null</code> to capture the errors as a string).
+     */
+    public void setErrorBuffer(FileBuffer buffer) {
+        errorTarget.set(null, buffer, null, null);
+    }
+
+    /**
+     * Direct the standard output of the process to a stream instead of capturing it. The output is written in chunks
+     * as and when it is produced by the process. The stream is flushed at the end, but not closed.
+     *
+     * @param stream Stream to write the output to (<code>null</code> to capture the output as a string).
+     */
+    public void setOutputStream(OutputStream stream) {
+        outputTarget.set(null, null, stream, null);
+    }
+
+    /**
+     * Direct the standard error of the process to a stream instead of capturing it. The errors are written in chunks
+     * as and when they are produced by the process. The stream is flushed at the end, but not closed.
+     *
+     * @param stream Stream to write the errors to (<code>null</code> to capture the errors as a string).
+     */
+    public void setErrorStream(OutputStream stream) {
+        errorTarget.set(null, null, stream, null);
+    }
+
+    /**
+     * Set a listener to receive the standard output of the process line by line (without the line terminator)
+     * as and when it is produced, instead of capturing it. The listener is invoked from another thread.
+     *
+     * @param listener Listener (<code>null</code> to capture the output as a string).
+     */
+    public void setOutputListener(Consumer<String> listener) {
+        outputTarget.set(null, null, null, listener);
+    }
+
+    /**
+     * Set a listener to receive the standard error of the process line by line (without the line terminator)
+     * as and when it is produced, instead of capturing it. The listener is invoked from another thread.
+     *
+     * @param listener Listener (<code>null</code> to capture the errors as a string).
+     */
+    public void setErrorListener(Consumer<String> listener) {
+        errorTarget.set(null, null, null, listener);
+    }
+
+    /**
+     * Set the maximum number of bytes to be captured from the output and the error streams when they are captured as
+     * strings. If more is produced, only the last part (of this size) is kept.
+     *
+     * @param maxCapture Maximum number of bytes (zero or negative for no limit, the default).
+     */
+    public void setMaxCapture(int maxCapture) {
+        this.maxCapture = maxCapture;
+    }
+
+    /**
+     * Get the maximum number of bytes to be captured from the output and the error streams.
+     *
+     * @return Maximum number of bytes (zero if there is no limit).
+     */
+    public int getMaxCapture() {
+        return Math.max(0, maxCapture);
+    }
+
+    /**
+     * Set a timeout for the process. If the process does not finish within this time, it will be killed along with
+     * all its descendant processes.
+     *
+     * @param timeout Timeout in milliseconds (zero or negative for no timeout, the default).
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Get the timeout for the process.
+     *
+     * @return Timeout in milliseconds (zero if there is no timeout).
+     */
+    public long getTimeout() {
+        return Math.max(0, timeout);
+    }
+
+    /**
+     * Check whether the last executed process was killed because of the timeout.
+     *
+     * @return True or false.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
     }
 
     /**
@@ -174,7 +384,7 @@ public class SystemProcess {
      * the execution of the process.
      *
      * @return a String containing the standard output of the executed process.
-     *         If the process has not been executed or no output was produced, it may return null.
+     *         If the process has not been executed or the output was directed elsewhere, it returns null.
      */
     public String getOutput() {
         return output;
@@ -183,7 +393,8 @@ public class SystemProcess {
     /**
      * Retrieves the error message generated during the execution of the process.
      *
-     * @return the error output of the process as a String, or null if no error occurred.
+     * @return the error output of the process as a String, or null if the process has not been executed or the errors
+     *         were directed elsewhere.
      */
     public String getError() {
         return error;
@@ -234,4 +445,148 @@ public class SystemProcess {
         }
         this.directory = directory;
     }
-}
\ No newline at end of file
+
+    /**
+     * Where the output (or the error) of the process should go.
+     */
+    private static class Target {
+
+        private File file;
+        private FileBuffer buffer;
+        private OutputStream stream;
+        private Consumer<String> listener;
+
+        private boolean isCaptured() {
+            return file == null && buffer == null && stream == null && listener == null;
+        }
+
+        private void set(File file, FileBuffer buffer, OutputStream stream, Consumer<String> listener) {
+            this.file = file;
+            this.buffer = buffer;
+            this.stream = stream;
+            this.listener = listener;
+        }
+
+        /**
+         * Start reading from the given stream of the process.
+         *
+         * @param in Stream of the process.
+         * @param capture Where to capture it if it is not directed elsewhere.
+         * @return Future to wait for.
+         */
+        private Future<Void> pump(InputStream in, Capture capture) {
+            FileBuffer buffer = this.buffer;
+            OutputStream stream = this.stream;
+            Consumer<String> listener = this.listener;
+            return Executor.execute(() -> {
+                try {
+                    if (buffer != null) {
+                        buffer.begin();
+                        lines(in, buffer::write);
+                        buffer.end();
+                    } else if (stream != null) {
+                        in.transferTo(stream);
+                        stream.flush();
+                    } else if (listener != null) {
+                        lines(in, line -> listener.accept(new String(line, StandardCharsets.UTF_8)));
+                    } else {
+                        capture.read(in);
+                    }
+                } catch (Exception e) {
+                    try { // The process should not be blocked because no one is reading
+                        in.transferTo(OutputStream.nullOutputStream());
+                    } catch (IOException ignored) {
+                    }
+                    throw e;
+                } finally {
+                    IO.close(in);
+                }
+                return null;
+            });
+        }
+
+        private static void lines(InputStream in, EConsumer<byte[], Exception> consumer) throws Exception {
+            byte[] chunk = new byte[8192], line = new byte[256];
+            int n, length = 0;
+            while ((n = in.read(chunk)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] == '\n') {
+                        consumer.accept(line(line, length));
+                        length = 0;
+                        continue;
+                    }
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length << 1);
+                    }
+                    line[length++] = chunk[i];
+                }
+            }
+            if (length > 0) {
+                consumer.accept(line(line, length));
+            }
+        }
+
+        private static byte[] line(byte[] line, int length) {
+            return Arrays.copyOf(line, length > 0 && line[length - 1] == '\r' ? length - 1 : length);
+        }
+    }
+
+    /**
+     * Captures the output (or the error) of the process, keeping only the last part if a limit is set.
+     */
+    private static class Capture {
+
+        private final int limit;
+        private byte[] data = new byte[1024];
+        private int size = 0;
+        private boolean truncated = false;
+
+        private Capture(int limit) {
+            this.limit = limit;
+        }
+
+        private void read(InputStream in) throws IOException {
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                write(chunk, n);
+            }
+        }
+
+        private synchronized void write(byte[] b, int len) {
+            int off = 0;
+            if (limit > 0) {
+                if (len >= limit) {
+                    off = len - limit;
+                    len = limit;
+                    size = 0;
+                    truncated = true;
+                } else if (size + len > (limit << 1)) { // Keep it within twice the limit
+                    int keep = limit - len;
+                    System.arraycopy(data, size - keep, data, 0, keep);
+                    size = keep;
+                    truncated = true;
+                }
+            }
+            if (size + len > data.length) {
+                int capacity = Math.max(size + len, data.length << 1);
+                data = Arrays.copyOf(data, limit > 0 ? Math.min(capacity, limit << 1) : capacity);
+            }
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+        }
+
+        @Override
+        public synchronized String toString() {
+            int from = limit > 0 && size > limit ? size - limit : 0;
+            if (truncated || from > 0) {
+                while (from < size && (data[from] & 0xC0) == 0x80) { // Skip a partial character
+                    ++from;
+                }
+            }
+            String s = new String(data, from, size - from, StandardCharsets.UTF_8);
+            s = s.replace("\r\n", "\n").replace('\r', '\n');
+            return s.endsWith("\n") ? s.substring(0, s.length() - 1) : s;
+        }
+    }
+}